@@ -0,0 +1,30 @@
+package com.argo.sqlite.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Table level index, used in {@link Table#indexes()}
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target({})
+public @interface Index {
+
+    /**
+     * Index Name, default idx_{table}_{columns}
+     * @return String
+     */
+    String name() default "";
+
+    /**
+     * Indexed Columns
+     * @return String[]
+     */
+    String[] columns();
+
+    /**
+     * @return boolean
+     */
+    boolean unique() default false;
+}
@@ -23,4 +23,17 @@ public @interface Table {
      * @return String
      */
     String context() default "default";
+
+    /**
+     * Composite / Unique Indexes
+     * @return Index[]
+     */
+    Index[] indexes() default {};
+
+    /**
+     * 生成的Mapper直接读写字段, 不要求getter/setter. 字段不能是private(Mapper与实体同包).
+     * 若@Column字段是final, 则通过按字段声明顺序接收全部@Column的构造函数创建实体(不可变实体)
+     * @return boolean
+     */
+    boolean fieldAccess() default false;
 }
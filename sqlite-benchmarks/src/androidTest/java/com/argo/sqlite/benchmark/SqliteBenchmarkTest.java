@@ -0,0 +1,44 @@
+package com.argo.sqlite.benchmark;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import com.argo.sqlite.SqliteContext;
+import com.argo.sqlite.SqliteEngine;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.io.File;
+
+/**
+ * 执行全部基准测试, 结果写到 getExternalFilesDir/sqlite-benchmarks.json
+ * ./gradlew :sqlite-benchmarks:connectedAndroidTest
+ */
+public class SqliteBenchmarkTest extends AndroidTestCase {
+
+    public void testRunAll() throws Exception {
+        Context context = getContext();
+        SQLiteDatabase.loadLibs(context);
+
+        SqliteContext dbContext = new SqliteContext(context, "benchmark", "benchmark".getBytes("UTF-8"));
+        dbContext.setEnabled(true);
+        dbContext.deleteFile();
+        dbContext.ensureDbOpen();
+        SqliteEngine.add(dbContext);
+        ModelInit.prepare();
+
+        try {
+            SqliteBenchmarkRunner runner = new SqliteBenchmarkRunner();
+            runner.runAll(SqliteBenchmarks.create(dbContext, SqliteBenchmarks.DEFAULT_ROWS));
+
+            File dir = context.getExternalFilesDir(null);
+            if (dir == null){
+                dir = context.getFilesDir();
+            }
+            runner.writeJson(new File(dir, "sqlite-benchmarks.json"));
+            assertFalse(runner.getResults().isEmpty());
+        } finally {
+            dbContext.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.argo.sqlite.benchmark;
+
+/**
+ * 一个基准测试. run执行一轮, 返回这一轮的操作数, 用于计算每个操作的耗时
+ */
+public abstract class SqliteBenchmark {
+
+    private final String name;
+
+    public SqliteBenchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 预热和测量之前调用一次, 不计时
+     * @throws Exception
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * 执行一轮
+     * @return 这一轮的操作数
+     * @throws Exception
+     */
+    public abstract int run() throws Exception;
+
+    /**
+     * 测量之后调用一次, 不计时
+     * @throws Exception
+     */
+    public void tearDown() throws Exception {
+    }
+}
@@ -0,0 +1,151 @@
+package com.argo.sqlite.benchmark;
+
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * 依次执行SqliteBenchmark: 先预热warmupRounds轮, 再测量measureRounds轮,
+ * 统计每个操作的耗时(ns/op)并输出JSON, 用于发布前比较回归
+ */
+public class SqliteBenchmarkRunner {
+
+    public static final int DEFAULT_WARMUP_ROUNDS = 5;
+    public static final int DEFAULT_MEASURE_ROUNDS = 20;
+
+    /**
+     * 一个基准测试的结果
+     */
+    public static final class Result {
+
+        public final String name;
+        public final long ops;
+        public final double minNanosPerOp;
+        public final double medianNanosPerOp;
+        public final double p90NanosPerOp;
+        public final double meanNanosPerOp;
+
+        Result(String name, long ops, double[] samples) {
+            Arrays.sort(samples);
+            double sum = 0;
+            for (int i = 0; i < samples.length; i++) {
+                sum += samples[i];
+            }
+            this.name = name;
+            this.ops = ops;
+            this.minNanosPerOp = samples[0];
+            this.medianNanosPerOp = samples[samples.length / 2];
+            this.p90NanosPerOp = samples[Math.min(samples.length - 1, (int) (samples.length * 0.9))];
+            this.meanNanosPerOp = sum / samples.length;
+        }
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("ops", ops);
+            json.put("minNsPerOp", minNanosPerOp);
+            json.put("medianNsPerOp", medianNanosPerOp);
+            json.put("p90NsPerOp", p90NanosPerOp);
+            json.put("meanNsPerOp", meanNanosPerOp);
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: median %.1f ns/op, p90 %.1f ns/op, ops %d", name, medianNanosPerOp, p90NanosPerOp, ops);
+        }
+    }
+
+    private final int warmupRounds;
+    private final int measureRounds;
+    private final List<Result> results = new ArrayList<Result>();
+
+    public SqliteBenchmarkRunner() {
+        this(DEFAULT_WARMUP_ROUNDS, DEFAULT_MEASURE_ROUNDS);
+    }
+
+    public SqliteBenchmarkRunner(int warmupRounds, int measureRounds) {
+        this.warmupRounds = warmupRounds;
+        this.measureRounds = Math.max(1, measureRounds);
+    }
+
+    public Result run(SqliteBenchmark benchmark) throws Exception {
+        benchmark.setUp();
+        try {
+            for (int i = 0; i < warmupRounds; i++) {
+                benchmark.run();
+            }
+
+            double[] samples = new double[measureRounds];
+            long ops = 0;
+            for (int i = 0; i < measureRounds; i++) {
+                long ts = System.nanoTime();
+                int n = benchmark.run();
+                long elapsed = System.nanoTime() - ts;
+                samples[i] = (double) elapsed / Math.max(1, n);
+                ops += n;
+            }
+
+            Result result = new Result(benchmark.getName(), ops, samples);
+            results.add(result);
+            Timber.i("benchmark %s", result);
+            return result;
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    public List<Result> runAll(List<SqliteBenchmark> benchmarks) throws Exception {
+        for (int i = 0; i < benchmarks.size(); i++) {
+            run(benchmarks.get(i));
+        }
+        return results;
+    }
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        json.put("sdk", Build.VERSION.SDK_INT);
+        json.put("warmupRounds", warmupRounds);
+        json.put("measureRounds", measureRounds);
+        JSONArray items = new JSONArray();
+        for (int i = 0; i < results.size(); i++) {
+            items.put(results.get(i).toJson());
+        }
+        json.put("benchmarks", items);
+        return json;
+    }
+
+    /**
+     * 结果写到JSON文件
+     * @param file
+     * @throws IOException
+     * @throws JSONException
+     */
+    public void writeJson(File file) throws IOException, JSONException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(toJson().toString(2));
+        } finally {
+            writer.close();
+        }
+        Timber.i("benchmark results: %s", file.getAbsolutePath());
+    }
+}
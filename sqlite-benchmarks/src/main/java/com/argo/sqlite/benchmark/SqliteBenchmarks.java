@@ -0,0 +1,209 @@
+package com.argo.sqlite.benchmark;
+
+import com.argo.sqlite.SqliteBlock;
+import com.argo.sqlite.SqliteContext;
+import com.argo.sqlite.benchmark.model.BMGroup;
+import com.argo.sqlite.benchmark.model.BMGroupMapper;
+import com.argo.sqlite.benchmark.model.BMItem;
+import com.argo.sqlite.benchmark.model.BMItemMapper;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 生成的Mapper主要路径的基准测试:
+ * 单条/批量保存, 主键读取(含实体缓存), IN读取, 全表扫描, wrapRef关联读取, 动态where查询
+ */
+public final class SqliteBenchmarks {
+
+    public static final int DEFAULT_ROWS = 5000;
+    public static final int GROUPS = 50;
+
+    private SqliteBenchmarks() {
+    }
+
+    /**
+     * @param dbContext 已打开, ModelInit.prepare()已调用
+     * @param rows 预置的记录数
+     * @return
+     */
+    public static List<SqliteBenchmark> create(final SqliteContext dbContext, final int rows) {
+        final BMItemMapper items = BMItemMapper.instance;
+        final BMGroupMapper groups = BMGroupMapper.instance;
+        final Random random = new Random(42);
+
+        List<SqliteBenchmark> list = new ArrayList<SqliteBenchmark>();
+
+        list.add(new SqliteBenchmark("insert.single") {
+            private long nextId = rows + 1;
+
+            @Override
+            public int run() throws Exception {
+                final int n = 100;
+                dbContext.update(new SqliteBlock<SQLiteDatabase>() {
+                    @Override
+                    public void execute(SQLiteDatabase engine) {
+                        for (int i = 0; i < n; i++) {
+                            items.save(newItem(nextId++));
+                        }
+                    }
+                });
+                return n;
+            }
+        });
+
+        list.add(new SqliteBenchmark("insert.bulk") {
+            private long nextId = rows * 100L;
+
+            @Override
+            public int run() throws Exception {
+                final List<BMItem> batch = new ArrayList<BMItem>(1000);
+                for (int i = 0; i < 1000; i++) {
+                    batch.add(newItem(nextId++));
+                }
+                dbContext.update(new SqliteBlock<SQLiteDatabase>() {
+                    @Override
+                    public void execute(SQLiteDatabase engine) {
+                        items.save(batch);
+                    }
+                });
+                return batch.size();
+            }
+        });
+
+        list.add(new SqliteBenchmark("get.pk") {
+            @Override
+            public void setUp() throws Exception {
+                seed(dbContext, rows);
+                items.setEntityCache(null);
+            }
+
+            @Override
+            public int run() throws Exception {
+                for (int i = 0; i < 100; i++) {
+                    items.get((long) (random.nextInt(rows) + 1));
+                }
+                return 100;
+            }
+        });
+
+        list.add(new SqliteBenchmark("get.pk.cached") {
+            @Override
+            public void setUp() throws Exception {
+                items.enableEntityCache(rows);
+            }
+
+            @Override
+            public int run() throws Exception {
+                for (int i = 0; i < 100; i++) {
+                    items.get((long) (random.nextInt(rows) + 1));
+                }
+                return 100;
+            }
+
+            @Override
+            public void tearDown() throws Exception {
+                items.setEntityCache(null);
+            }
+        });
+
+        list.add(new SqliteBenchmark("gets.in") {
+            @Override
+            public int run() throws Exception {
+                Set<Long> ids = new HashSet<Long>();
+                while (ids.size() < 100) {
+                    ids.add((long) (random.nextInt(rows) + 1));
+                }
+                return items.gets(ids).size();
+            }
+        });
+
+        list.add(new SqliteBenchmark("select.scan") {
+            @Override
+            public int run() throws Exception {
+                return items.select().size();
+            }
+        });
+
+        list.add(new SqliteBenchmark("select.where.cached") {
+            @Override
+            public int run() throws Exception {
+                int n = 0;
+                for (int i = 0; i < 20; i++) {
+                    n += items.select("groupId = ? and stock > ?", "id desc", new String[]{ String.valueOf(i % GROUPS + 1), "10" }).size();
+                }
+                return Math.max(n, 1);
+            }
+        });
+
+        list.add(new SqliteBenchmark("wrapRef.list") {
+            @Override
+            public int run() throws Exception {
+                List<BMItem> result = items.selectLimit(null, "id asc", new String[]{ "500", "0" });
+                items.wrapRef(result);
+                return result.size();
+            }
+        });
+
+        list.add(new SqliteBenchmark("count.where") {
+            @Override
+            public int run() throws Exception {
+                for (int i = 0; i < 100; i++) {
+                    groups.countWhere("id > ?", new String[]{ String.valueOf(i % GROUPS) });
+                }
+                return 100;
+            }
+        });
+
+        return list;
+    }
+
+    /**
+     * 清空并预置rows条记录和GROUPS个关联实体
+     * @param dbContext
+     * @param rows
+     */
+    public static void seed(SqliteContext dbContext, final int rows) {
+        dbContext.update(new SqliteBlock<SQLiteDatabase>() {
+            @Override
+            public void execute(SQLiteDatabase engine) {
+                BMItemMapper.instance.delete(null, null);
+                BMGroupMapper.instance.delete(null, null);
+
+                List<BMGroup> groups = new ArrayList<BMGroup>(GROUPS);
+                for (int i = 1; i <= GROUPS; i++) {
+                    BMGroup group = new BMGroup();
+                    group.setId(i);
+                    group.setName("group " + i);
+                    group.setCreateAt(new Date());
+                    groups.add(group);
+                }
+                BMGroupMapper.instance.save(groups);
+
+                List<BMItem> list = new ArrayList<BMItem>(rows);
+                for (int i = 1; i <= rows; i++) {
+                    list.add(newItem(i));
+                }
+                BMItemMapper.instance.save(list);
+            }
+        });
+    }
+
+    static BMItem newItem(long id) {
+        BMItem item = new BMItem();
+        item.setId(id);
+        item.setGroupId(id % GROUPS + 1);
+        item.setTitle("item " + id);
+        item.setPrice(id * 0.5);
+        item.setStock((int) (id % 100));
+        item.setEnabled(id % 2 == 0);
+        item.setCreateAt(new Date());
+        return item;
+    }
+}
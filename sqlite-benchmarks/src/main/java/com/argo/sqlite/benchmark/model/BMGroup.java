@@ -0,0 +1,46 @@
+package com.argo.sqlite.benchmark.model;
+
+import com.argo.sqlite.annotations.Column;
+import com.argo.sqlite.annotations.Table;
+
+import java.util.Date;
+
+/**
+ * 基准测试的关联实体
+ */
+@Table(value = "bm_group")
+public class BMGroup {
+
+    @Column(pk = true)
+    private long id;
+
+    @Column
+    private String name;
+
+    @Column
+    private Date createAt;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Date getCreateAt() {
+        return createAt;
+    }
+
+    public void setCreateAt(Date createAt) {
+        this.createAt = createAt;
+    }
+}
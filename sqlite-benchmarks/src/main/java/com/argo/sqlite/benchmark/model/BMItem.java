@@ -0,0 +1,102 @@
+package com.argo.sqlite.benchmark.model;
+
+import com.argo.sqlite.annotations.Column;
+import com.argo.sqlite.annotations.RefLink;
+import com.argo.sqlite.annotations.Table;
+
+import java.util.Date;
+
+/**
+ * 基准测试的实体
+ */
+@Table(value = "bm_item")
+public class BMItem {
+
+    @Column(pk = true)
+    private long id;
+
+    @Column(index = true)
+    private long groupId;
+
+    @Column
+    private String title;
+
+    @Column
+    private double price;
+
+    @Column
+    private int stock;
+
+    @Column
+    private boolean enabled;
+
+    @Column
+    private Date createAt;
+
+    @RefLink(on = "groupId")
+    private BMGroup group;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getGroupId() {
+        return groupId;
+    }
+
+    public void setGroupId(long groupId) {
+        this.groupId = groupId;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    public void setPrice(double price) {
+        this.price = price;
+    }
+
+    public int getStock() {
+        return stock;
+    }
+
+    public void setStock(int stock) {
+        this.stock = stock;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Date getCreateAt() {
+        return createAt;
+    }
+
+    public void setCreateAt(Date createAt) {
+        this.createAt = createAt;
+    }
+
+    public BMGroup getGroup() {
+        return group;
+    }
+
+    public void setGroup(BMGroup group) {
+        this.group = group;
+    }
+}
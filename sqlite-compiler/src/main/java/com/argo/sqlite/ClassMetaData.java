@@ -39,6 +39,9 @@ public class ClassMetaData {
     private String className; // Model class simple name.
     private String packageName; // package name for model class.
     private boolean hasDefaultConstructor; // True if model has a public no-arg constructor.
+    private boolean fieldAccess; // True if generated code reads/writes fields directly, see Table.fieldAccess().
+    private boolean constructorMapping; // True if @Column fields are final and assigned through a constructor.
+    private List<ExecutableElement> constructors = new ArrayList<ExecutableElement>();
     private VariableElement primaryKey; // Reference to field used as primary key, if any.
 
     private List<VariableElement> fields = new ArrayList<VariableElement>(); // List of all fields in the class except those @Ignored.
@@ -61,6 +64,7 @@ public class ClassMetaData {
         this.classType = clazz;
         this.className = clazz.getSimpleName().toString();
         this.tableAnnotation = clazz.getAnnotation(Table.class);
+        this.fieldAccess = this.tableAnnotation != null && this.tableAnnotation.fieldAccess();
 
         typeUtils = env.getTypeUtils();
         //realmList = typeUtils.getDeclaredType(env.getElementUtils().getTypeElement("io.realm.RealmList"), typeUtils.getWildcardType(null, null));
@@ -96,7 +100,11 @@ public class ClassMetaData {
 
         this.mappingMethods();
 
-        if (!checkDefaultConstructor()) return false;
+        if (constructorMapping) {
+            if (!checkColumnConstructor()) return false;
+        } else if (!checkDefaultConstructor()) {
+            return false;
+        }
         if (!checkRequiredGetters()) return false;
         if (!checkRequireSetters()) return false;
 
@@ -219,6 +227,31 @@ public class ClassMetaData {
         }
     }
 
+    // Report if the constructor taking all @Column fields in declared order is missing
+    private boolean checkColumnConstructor() {
+        for (ExecutableElement constructor : constructors) {
+            if (constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                continue;
+            }
+            List<? extends VariableElement> params = constructor.getParameters();
+            if (params.size() != fields.size()) {
+                continue;
+            }
+            boolean matched = true;
+            for (int i = 0; i < params.size(); i++) {
+                if (!typeUtils.isSameType(params.get(i).asType(), fields.get(i).asType())) {
+                    matched = false;
+                    break;
+                }
+            }
+            if (matched) {
+                return true;
+            }
+        }
+        Utils.error("A non-private constructor taking all @Column fields in declared order must be declared when @Column fields are final.", classType);
+        return false;
+    }
+
     // Iterate through all class elements and add them to the appropriate internal data structures.
     // Returns true if all elements could be false if elements could not be categorized,
     private boolean categorizeClassElements() {
@@ -241,7 +274,19 @@ public class ClassMetaData {
                     continue;
                 }
 
-                if (!variableElement.getModifiers().contains(Modifier.PRIVATE) && (column != null || refLink != null)) {
+                if (fieldAccess) {
+                    if (modifiers.contains(Modifier.PRIVATE)) {
+                        Utils.error("The fields of the model must not be private when @Table(fieldAccess = true)", variableElement);
+                        return false;
+                    }
+                    if (modifiers.contains(Modifier.FINAL)) {
+                        if (refLink != null) {
+                            Utils.error("The @RefLink fields of the model must not be final", variableElement);
+                            return false;
+                        }
+                        constructorMapping = true;
+                    }
+                } else if (!modifiers.contains(Modifier.PRIVATE)) {
                     Utils.error("The fields of the model must be private", variableElement);
                     return false;
                 }
@@ -250,8 +295,10 @@ public class ClassMetaData {
                     // The field has the @column annotation.
                     fields.add(variableElement);
 
-                    expectedGetters.add(fieldName);
-                    expectedSetters.add(fieldName);
+                    if (!fieldAccess) {
+                        expectedGetters.add(fieldName);
+                        expectedSetters.add(fieldName);
+                    }
 
                     if (column.pk()){
                         // Primary Key
@@ -264,8 +311,10 @@ public class ClassMetaData {
                     // The field has the @refLink annotation.
                     refFields.add(variableElement);
 
-                    expectedGetters.add(fieldName);
-                    expectedSetters.add(fieldName);
+                    if (!fieldAccess) {
+                        expectedGetters.add(fieldName);
+                        expectedSetters.add(fieldName);
+                    }
 
                     DeclaredType declaredType = (DeclaredType)variableElement.asType();
 
@@ -297,6 +346,7 @@ public class ClassMetaData {
 
             } else if (elementKind.equals(ElementKind.CONSTRUCTOR)) {
                 hasDefaultConstructor =  hasDefaultConstructor || Utils.isDefaultConstructor(element);
+                constructors.add((ExecutableElement) element);
 
             } else if (elementKind.equals(ElementKind.METHOD)) {
                 ExecutableElement executableElement = (ExecutableElement) element;
@@ -355,6 +405,28 @@ public class ClassMetaData {
         return setters.get(fieldName);
     }
 
+    /**
+     * 读字段的表达式, getX() 或 x (fieldAccess)
+     */
+    public String getReader(String fieldName) {
+        return fieldAccess ? fieldName : getters.get(fieldName) + "()";
+    }
+
+    /**
+     * 写字段的表达式, setX(value) 或 x = value (fieldAccess)
+     */
+    public String getWriter(String fieldName, String value) {
+        return fieldAccess ? fieldName + " = " + value : setters.get(fieldName) + "(" + value + ")";
+    }
+
+    public boolean isFieldAccess() {
+        return fieldAccess;
+    }
+
+    public boolean isConstructorMapping() {
+        return constructorMapping;
+    }
+
     public String getPackageName() {
         return packageName;
     }
@@ -436,6 +508,10 @@ public class ClassMetaData {
         return getters.get(primaryKey.getSimpleName().toString());
     }
 
+    public String getPrimaryKeyReader() {
+        return getReader(primaryKey.getSimpleName().toString());
+    }
+
     private boolean isValidPrimaryKeyType(TypeMirror type) {
         for (TypeMirror validType : validPrimaryKeyTypes) {
             if (typeUtils.isAssignable(type, validType)) {
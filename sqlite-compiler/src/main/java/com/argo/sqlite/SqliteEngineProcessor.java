@@ -41,7 +41,7 @@ public class SqliteEngineProcessor extends AbstractProcessor {
 
         Utils.note("SqliteEngineProcessor");
 
-        // Create all proxy classes
+        // Collect metadata of all classes first, generators need to look up RefLink targets
         for (Element classElement : roundEnv.getElementsAnnotatedWith(Table.class)) {
 
             // Check the annotation was applied to a Class
@@ -60,14 +60,18 @@ public class SqliteEngineProcessor extends AbstractProcessor {
             }
 
             classesToValidate.add(metadata);
+        }
+
+        // Create all proxy classes
+        for (ClassMetaData metadata : classesToValidate) {
 
-            SqliteMapperClassGenerator sourceCodeGenerator = new SqliteMapperClassGenerator(processingEnv, metadata);
+            SqliteMapperClassGenerator sourceCodeGenerator = new SqliteMapperClassGenerator(processingEnv, metadata, classesToValidate);
             try {
                 sourceCodeGenerator.generate();
             } catch (IOException e) {
-                Utils.error(e.getMessage(), classElement);
+                Utils.error(e.getMessage(), metadata.getClassType());
             } catch (UnsupportedOperationException e) {
-                Utils.error(e.getMessage(), classElement);
+                Utils.error(e.getMessage(), metadata.getClassType());
             }
 
             //Utils.note("SqliteEngineProcessor Done Processing class " + metadata.getSimpleClassName());
@@ -1,8 +1,11 @@
 package com.argo.sqlite;
 
+import com.argo.sqlite.annotations.Column;
+import com.argo.sqlite.annotations.Index;
 import com.argo.sqlite.annotations.RefLink;
 import com.squareup.javapoet.ClassName;
 import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.JavaFile;
 import com.squareup.javapoet.MethodSpec;
 import com.squareup.javapoet.ParameterizedTypeName;
@@ -12,7 +15,10 @@ import com.squareup.javapoet.TypeSpec;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.lang.model.element.Modifier;
@@ -32,6 +38,7 @@ public class SqliteMapperClassGenerator {
 
     private ProcessingEnvironment processingEnvironment;
     private ClassMetaData metadata;
+    private Set<ClassMetaData> allMetadata;
     private final String className;
 
     // Class metadata for generating proxy classes
@@ -51,15 +58,18 @@ public class SqliteMapperClassGenerator {
     ClassName arrayMap = ClassName.get("android.support.v4.util", "ArrayMap");
     ClassName setType = ClassName.get("java.util", "Set");
     ClassName hashSetType = ClassName.get("java.util", "HashSet");
+    ClassName hashMapType = ClassName.get("java.util", "HashMap");
     ClassName listType = ClassName.get("java.util", "List");
     ClassName iteratorType = ClassName.get("java.util", "Iterator");
-    ClassName timberType = ClassName.get("timber.log", "Timber");
+    ClassName sqliteLogType = ClassName.get("com.argo.sqlite", "SqliteLog");
+    ClassName longMapType = ClassName.get("com.argo.sqlite", "SqliteLongMap");
 
     private String typeStringName = "java.lang.String";
 
-    public SqliteMapperClassGenerator(ProcessingEnvironment processingEnvironment, ClassMetaData metadata) {
+    public SqliteMapperClassGenerator(ProcessingEnvironment processingEnvironment, ClassMetaData metadata, Set<ClassMetaData> allMetadata) {
         this.processingEnvironment = processingEnvironment;
         this.metadata = metadata;
+        this.allMetadata = allMetadata;
         this.className = metadata.getSimpleClassName();
         this.mapperClassName = Utils.getMapperClassName(className);
         this.mapperTypeName = ClassName.bestGuess(this.mapperClassName);
@@ -92,13 +102,17 @@ public class SqliteMapperClassGenerator {
         this.addStaticInitCodes();
         this.addConstructor();
         this.addInsertStatementBinder();
+        this.addColumnMaskMethods();
         this.addInheritGetter();
         this.addPrepareMethod();
         this.addSaveWithRefMethod();
         this.addSaveWithListRefMethod();
         this.addSaveWithSetRefMethod();
         this.addDeleteMethod();
+        this.addGetPkValueMethod();
+        this.addBindPkValueMethod();
         this.addMapMethod();
+        this.addMapRowMethod();
         this.addWrapRefListMethod();
         this.addWrapRefMethod();
 
@@ -127,6 +141,19 @@ public class SqliteMapperClassGenerator {
         builder.addField(String.class, N_tableName, Modifier.PRIVATE, Modifier.STATIC);
         builder.addField(String.class, N_dbContextTag, Modifier.PUBLIC, Modifier.STATIC);
         builder.addField(mapperTypeName, N_instance, Modifier.PUBLIC, Modifier.STATIC);
+
+        // 每列对应的bit, 用于dirtyMask和update(o, mask)
+        final List<String> fieldNames = this.metadata.getFieldNames();
+        for (int i = 0; i < fieldNames.size(); i++) {
+            FieldSpec field = FieldSpec.builder(TypeName.LONG, getColumnMaskName(fieldNames.get(i)), Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                    .initializer("1L << $L", Math.min(i, 63))
+                    .build();
+            builder.addField(field);
+        }
+    }
+
+    private String getColumnMaskName(String fieldName){
+        return "COL_" + fieldName.toUpperCase();
     }
 
     private void addStaticInitCodes(){
@@ -162,6 +189,60 @@ public class SqliteMapperClassGenerator {
         return s.toString();
     }
 
+    /**
+     * 索引名 -> create index语句, 包括@Column(index = true)和@Table(indexes = {...})
+     * @return
+     */
+    private Map<String, String> buildCreateIndexSql(){
+        Map<String, String> indexes = new LinkedHashMap<String, String>();
+        String tableName = this.metadata.getTableAnnotation().value();
+
+        List<VariableElement> fields = this.metadata.getFields();
+        for (int i = 0; i < fields.size(); i++) {
+            Column column = fields.get(i).getAnnotation(Column.class);
+            if (column.index() && !column.pk()){
+                String fieldName = this.metadata.getFieldNames().get(i);
+                addCreateIndexSql(indexes, tableName, "", new String[]{fieldName}, false);
+            }
+        }
+
+        Index[] tableIndexes = this.metadata.getTableAnnotation().indexes();
+        for (int i = 0; i < tableIndexes.length; i++) {
+            Index index = tableIndexes[i];
+            addCreateIndexSql(indexes, tableName, index.name(), index.columns(), index.unique());
+        }
+
+        return indexes;
+    }
+
+    private void addCreateIndexSql(Map<String, String> indexes, String tableName, String name, String[] columns, boolean unique){
+        if (columns.length == 0){
+            Utils.error("Index must have at least 1 column. class = " + this.className + ", index = " + name);
+            return;
+        }
+
+        StringBuilder n = new StringBuilder(unique ? "uidx_" : "idx_").append(tableName);
+        StringBuilder c = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (!this.metadata.getFieldNames().contains(columns[i])){
+                Utils.error("Index column can't be found. class = " + this.className + ", column = " + columns[i]);
+            }
+            n.append("_").append(columns[i]);
+            c.append(columns[i]).append(", ");
+        }
+        c.setLength(c.length() - 2);
+
+        String indexName = name.length() > 0 ? name : n.toString();
+        StringBuilder s = new StringBuilder("create ");
+        if (unique){
+            s.append("unique ");
+        }
+        s.append("index if not exists ").append(indexName).append(" on ").append(tableName);
+        s.append("(").append(c).append(");");
+
+        indexes.put(indexName, s.toString());
+    }
+
     private void addConstructor(){
 
         MethodSpec constructor = MethodSpec.constructorBuilder()
@@ -181,31 +262,131 @@ public class SqliteMapperClassGenerator {
                 .addModifiers(Modifier.PROTECTED)
                 .addParameter(ClassName.bestGuess("net.sqlcipher.database.SQLiteStatement"), "statement")
                 .addParameter(entityClass, "o")
+                .addParameter(TypeName.INT, "offset")
                 .addAnnotation(Override.class);
 
         final List<String> fieldNames = this.metadata.getFieldNames();
         for (int i = 0; i < fieldNames.size(); i++) {
             int bindIndex = i + 1;
+            this.addBindStatement(method, "offset + " + bindIndex, fieldNames.get(i), this.metadata.getFieldTypeName(i));
+        }
+
+        builder.addMethod(method.build());
+
+    }
+
+    private void addBindStatement(MethodSpec.Builder method, String bindIndex, String filedName, String typeName){
+        final String bind = Constants.JAVA_TO_BINDING.get(typeName);
+        final String getter = this.metadata.getReader(filedName);
+
+        Utils.note("typeName:" + typeName + ", bind: " + bind + ", getter: " + getter);
+        if (typeName.equalsIgnoreCase("date")){
+            method.addStatement("statement.$N($N, getDate(o.$L))", bind, bindIndex, getter);
+        }else if(typeName.equalsIgnoreCase("boolean")){
+            method.addStatement("statement.$N($N, getBoolean(o.$L))", bind, bindIndex, getter);
+        }else if (typeName.equalsIgnoreCase("string")){
+            method.addStatement("statement.$N($N, filterNull(o.$L))", bind, bindIndex, getter);
+        }else{
+            method.addStatement("statement.$N($N, o.$L)", bind, bindIndex, getter);
+        }
+    }
+
+    /**
+     * dirtyMask, snapshot, bindUpdateStatement
+     */
+    private void addColumnMaskMethods(){
+
+        final List<String> fieldNames = this.metadata.getFieldNames();
+        final String pkName = this.metadata.getPrimaryKey().getSimpleName().toString();
+
+        //1. dirtyMask
+        MethodSpec.Builder dirtyMask = MethodSpec.methodBuilder("dirtyMask")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(entityClass, "o")
+                .addParameter(entityClass, "snapshot")
+                .addAnnotation(Override.class)
+                .returns(TypeName.LONG)
+                .addStatement("long mask = 0");
+
+        for (int i = 0; i < fieldNames.size(); i++) {
             String filedName = fieldNames.get(i);
+            if (filedName.equals(pkName)){
+                continue;
+            }
             String typeName = this.metadata.getFieldTypeName(i);
+            String getter = this.metadata.getReader(filedName);
+            String mask = getColumnMaskName(filedName);
+            if (typeName.equals("float") || typeName.equals("double")){
+                dirtyMask.beginControlFlow("if (Double.compare(o.$L, snapshot.$L) != 0)", getter, getter);
+            }else if (Constants.JAVA_TO_SQLITE_GET.containsKey(typeName) && Character.isLowerCase(typeName.charAt(0)) && !typeName.equals("byte[]")){
+                dirtyMask.beginControlFlow("if (o.$L != snapshot.$L)", getter, getter);
+            }else if (typeName.equals("byte[]")){
+                dirtyMask.beginControlFlow("if (!$T.equals(o.$L, snapshot.$L))", ClassName.get("java.util", "Arrays"), getter, getter);
+            }else{
+                dirtyMask.beginControlFlow("if (!isEqual(o.$L, snapshot.$L))", getter, getter);
+            }
+            dirtyMask.addStatement("mask |= $N", mask).endControlFlow();
+        }
 
-            final String bind = Constants.JAVA_TO_BINDING.get(typeName);
-            final String getter = this.metadata.getGetter(filedName);
+        dirtyMask.addStatement("return mask");
+        builder.addMethod(dirtyMask.build());
+
+        //2. snapshot
+        MethodSpec.Builder snapshot = MethodSpec.methodBuilder("snapshot")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(entityClass, "o")
+                .addAnnotation(Override.class)
+                .returns(entityClass)
+                .beginControlFlow("if (o == null)")
+                .addStatement("return null")
+                .endControlFlow();
 
-            Utils.note("typeName:" + typeName + ", bind: " + bind + ", getter: " + getter);
+        List<String> copies = new ArrayList<>();
+        for (int i = 0; i < fieldNames.size(); i++) {
+            String filedName = fieldNames.get(i);
+            String typeName = this.metadata.getFieldTypeName(i);
+            String getter = this.metadata.getReader(filedName);
             if (typeName.equalsIgnoreCase("date")){
-                method.addStatement("statement.$N($N, getDate(o.$N()))", bind, bindIndex + "", getter);
-            }else if(typeName.equalsIgnoreCase("boolean")){
-                method.addStatement("statement.$N($N, getBoolean(o.$N()))", bind, bindIndex + "", getter);
-            }else if (typeName.equalsIgnoreCase("string")){
-                method.addStatement("statement.$N($N, filterNull(o.$N()))", bind, bindIndex + "", getter);
+                copies.add("copyDate(o." + getter + ")");
+            }else if (typeName.equals("byte[]")){
+                copies.add("copyBytes(o." + getter + ")");
             }else{
-                method.addStatement("statement.$N($N, o.$N())", bind, bindIndex + "", getter);
+                copies.add("o." + getter);
             }
         }
 
-        builder.addMethod(method.build());
+        if (this.metadata.isConstructorMapping()){
+            snapshot.addStatement("return new $T($L)", entityClass, Utils.join(copies, ", "));
+        }else{
+            snapshot.addStatement("$T copy = new $T()", entityClass, entityClass);
+            for (int i = 0; i < fieldNames.size(); i++) {
+                snapshot.addStatement("copy.$L", this.metadata.getWriter(fieldNames.get(i), copies.get(i)));
+            }
+            snapshot.addStatement("return copy");
+        }
+        builder.addMethod(snapshot.build());
+
+        //3. bindUpdateStatement
+        MethodSpec.Builder bindUpdate = MethodSpec.methodBuilder("bindUpdateStatement")
+                .addModifiers(Modifier.PROTECTED)
+                .addParameter(ClassName.bestGuess("net.sqlcipher.database.SQLiteStatement"), "statement")
+                .addParameter(entityClass, "o")
+                .addParameter(TypeName.LONG, "mask")
+                .addAnnotation(Override.class)
+                .addStatement("int i = 1");
+
+        for (int i = 0; i < fieldNames.size(); i++) {
+            String filedName = fieldNames.get(i);
+            if (filedName.equals(pkName)){
+                continue;
+            }
+            bindUpdate.beginControlFlow("if ((mask & $N) != 0)", getColumnMaskName(filedName));
+            this.addBindStatement(bindUpdate, "i++", filedName, this.metadata.getFieldTypeName(i));
+            bindUpdate.endControlFlow();
+        }
+        this.addBindStatement(bindUpdate, "i", pkName, this.metadata.getFieldTypeName(this.metadata.getPrimaryKey()));
 
+        builder.addMethod(bindUpdate.build());
     }
 
     private void addInheritGetter(){
@@ -310,6 +491,22 @@ public class SqliteMapperClassGenerator {
 
 
         builder.addMethod(getTableCreateSql.build());
+
+        MethodSpec.Builder getIndexSql = MethodSpec.methodBuilder("getIndexSql")
+                .addModifiers(Modifier.PUBLIC)
+                .addAnnotation(Override.class)
+                .returns(mapTypeName);
+
+        getIndexSql.addStatement("$T $N = new $T()", mapTypeName, "indexes", arraymapTypeName);
+
+        Map<String, String> indexes = this.buildCreateIndexSql();
+        for (Map.Entry<String, String> item : indexes.entrySet()){
+            getIndexSql.addStatement("$N.put($S, $S)", "indexes", item.getKey(), item.getValue());
+        }
+
+        getIndexSql.addStatement("return $N", "indexes");
+
+        builder.addMethod(getIndexSql.build());
     }
 
     private void addPrepareMethod(){
@@ -347,7 +544,7 @@ public class SqliteMapperClassGenerator {
 
         for (int i = 0; i < refNames.size(); i++) {
             String name = refNames.get(i);
-            String getter = this.metadata.getGetter(name);
+            String getter = this.metadata.getReader(name);
             TypeMirror e = refFields.get(i).asType();
 
             varName = "refVar" + i;
@@ -363,7 +560,7 @@ public class SqliteMapperClassGenerator {
             }
 
             ClassName targetMapperClass = ClassName.bestGuess(Utils.getMapperClassName(targetTypeName.toString()));
-            save.addStatement("$T $N = o.$N()", varTypeName, varName, getter);
+            save.addStatement("$T $N = o.$L", varTypeName, varName, getter);
             save.beginControlFlow("if (null != $N)", varName);
             save.addStatement("$T.instance.saveWithRef($N)", targetMapperClass, varName);
             save.endControlFlow();
@@ -403,12 +600,12 @@ public class SqliteMapperClassGenerator {
 
         for (int i = 0; i < refNames.size(); i++) {
             String name = refNames.get(i);
-            String getter = this.metadata.getGetter(name);
+            String getter = this.metadata.getReader(name);
             TypeMirror e = refFields.get(i).asType();
 
             varName = "refVar" + i;
             boolean isList = false;
-            save.addStatement("$T.d($S)", timberType, name);
+            save.addStatement("$T.d($S)", sqliteLogType, name);
 
             TypeName targetTypeName = TypeName.get(e);
             TypeName varTypeName = TypeName.get(e);
@@ -422,7 +619,7 @@ public class SqliteMapperClassGenerator {
             ClassName targetMapperClass = ClassName.bestGuess(Utils.getMapperClassName(targetTypeName.toString()));
 
             save.beginControlFlow("for(int i=0; i<list.size(); i++)");
-            save.addStatement("$T $N = list.get(i).$N()", varTypeName, varName, getter);
+            save.addStatement("$T $N = list.get(i).$L", varTypeName, varName, getter);
             save.beginControlFlow("if (null != $N)", varName);
             if (isList){
                 save.addStatement("vars.addAll($N)", varName);
@@ -473,7 +670,7 @@ public class SqliteMapperClassGenerator {
 
         for (int i = 0; i < refNames.size(); i++) {
             String name = refNames.get(i);
-            String getter = this.metadata.getGetter(name);
+            String getter = this.metadata.getReader(name);
             TypeMirror e = refFields.get(i).asType();
 
             varName = "refVar" + i;
@@ -493,7 +690,7 @@ public class SqliteMapperClassGenerator {
 
             save.addStatement("$T<$T> $N = set.iterator()", iteratorType, entityClass, varName);
             save.beginControlFlow("while ($N.hasNext())", varName);
-            save.addStatement("$T v = $N.next().$N()", varTypeName, varName, getter);
+            save.addStatement("$T v = $N.next().$L", varTypeName, varName, getter);
 
             save.beginControlFlow("if (null != v)");
             if (isList){
@@ -526,6 +723,23 @@ public class SqliteMapperClassGenerator {
         return str.startsWith("java.util.Set");
     }
 
+    /**
+     * 查找关联实体读主键的表达式, 找不到时按约定使用getId()
+     * @param targetClassName
+     * @return
+     */
+    private String getTargetPkReader(TypeName targetClassName){
+        String name = targetClassName.toString();
+        for (ClassMetaData item : allMetadata) {
+            if (item.getFullyQualifiedClassName().equals(name)){
+                return item.getPrimaryKeyReader();
+            }
+        }
+
+        Utils.note("RefLink target not found in this round, use getId(). class = " + this.className + ", target = " + name);
+        return "getId()";
+    }
+
     private void addDeleteMethod(){
 
         MethodSpec.Builder delete = MethodSpec.methodBuilder("delete")
@@ -547,11 +761,13 @@ public class SqliteMapperClassGenerator {
         String typeName = this.metadata.getFieldTypeName(this.metadata.getPrimaryKey());
 
         final String bind = Constants.JAVA_TO_BINDING.get(typeName);
-        final String getter = this.metadata.getGetter(filedName);
+        final String getter = this.metadata.getReader(filedName);
 
-        delete.addStatement("deleteStatement.$N($N, o.$N())", bind, "1", getter);
+        delete.addStatement("deleteStatement.$N($N, o.$L)", bind, "1", getter);
 
         delete.addStatement("int recs = deleteStatement.executeUpdateDelete()")
+                .addStatement("this.evictCache(o.$L)", getter)
+                .addStatement("this.notifyChanged(recs)")
                 .addStatement("return (recs == 1)");
 
 
@@ -559,6 +775,69 @@ public class SqliteMapperClassGenerator {
 
     }
 
+    private void addGetPkValueMethod(){
+
+        String filedName = this.metadata.getPrimaryKey().getSimpleName().toString();
+
+        MethodSpec getPkValue = MethodSpec.methodBuilder("getPkValue")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(entityClass, "o")
+                .addAnnotation(Override.class)
+                .returns(this.metadata.getPrimaryKeyTypeName())
+                .addStatement("return o.$L", this.metadata.getReader(filedName))
+                .build();
+
+        builder.addMethod(getPkValue);
+
+    }
+
+    /**
+     * 按主键字段的类型直接绑定(删除语句和查询参数), 不经过instanceof判断和toString
+     */
+    private void addBindPkValueMethod(){
+
+        String typeName = this.metadata.getFieldTypeName(this.metadata.getPrimaryKey());
+        String bind = Constants.JAVA_TO_BINDING.get(typeName);
+        boolean typed = "bindLong".equals(bind) || "bindDouble".equals(bind) || "bindString".equals(bind);
+        if (!typed || "boolean".equals(typeName) || "Boolean".equals(typeName) || "Date".equals(typeName)){
+            // Date, Boolean等主键使用SqliteMapper的默认实现
+            return;
+        }
+
+        ClassName program = ClassName.bestGuess("net.sqlcipher.database.SQLiteProgram");
+        MethodSpec bindPkValue = MethodSpec.methodBuilder("bindPkValue")
+                .addModifiers(Modifier.PROTECTED)
+                .addParameter(program, "program")
+                .addParameter(TypeName.INT, "index")
+                .addParameter(this.metadata.getPrimaryKeyTypeName(), "pkValue")
+                .addAnnotation(Override.class)
+                .beginControlFlow("if (pkValue == null)")
+                .addStatement("program.bindNull(index)")
+                .nextControlFlow("else")
+                .addStatement("program.$N(index, pkValue)", bind)
+                .endControlFlow()
+                .build();
+
+        builder.addMethod(bindPkValue);
+
+        // bindLong/bindDouble按基本类型添加, 不经过add(Object)
+        String cast = "bindLong".equals(bind) ? "(long) " : ("bindDouble".equals(bind) ? "(double) " : "");
+        MethodSpec addPkValue = MethodSpec.methodBuilder("addPkValue")
+                .addModifiers(Modifier.PROTECTED)
+                .addParameter(ClassName.get("com.argo.sqlite", "SqliteBindArgs"), "args")
+                .addParameter(this.metadata.getPrimaryKeyTypeName(), "pkValue")
+                .addAnnotation(Override.class)
+                .beginControlFlow("if (pkValue == null)")
+                .addStatement("args.addNull()")
+                .nextControlFlow("else")
+                .addStatement("args.add($LpkValue)", cast)
+                .endControlFlow()
+                .build();
+
+        builder.addMethod(addPkValue);
+
+    }
+
     private void addMapMethod(){
 
         ClassName cursor = ClassName.bestGuess("net.sqlcipher.Cursor");
@@ -572,10 +851,6 @@ public class SqliteMapperClassGenerator {
                 .addAnnotation(Override.class)
                 .returns(entityClass)
 
-                .beginControlFlow("if (o == null)")
-                .addStatement("o = new $T()", entityClass)
-                .endControlFlow()
-
                 .beginControlFlow("if ($N.isBeforeFirst())", N_Cursor)
                 .addStatement("$N.moveToFirst()", N_Cursor)
                 .endControlFlow();
@@ -584,26 +859,98 @@ public class SqliteMapperClassGenerator {
         String getDate = "getDate";
 
         final List<String> fieldNames = this.metadata.getFieldNames();
+        List<String> values = new ArrayList<>();
         for (int i = 0; i < fieldNames.size(); i++) {
             String filedName = fieldNames.get(i);
             String typeName = this.metadata.getFieldTypeName(i);
             final String bind = Constants.JAVA_TO_SQLITE_GET.get(typeName);
-            final String setter = this.metadata.getSetter(filedName);
             //Utils.note("typeName:" + typeName + ", bind: " + bind + ", getter: " + getter);
-            if (bind.equalsIgnoreCase(getBoolean) || bind.equalsIgnoreCase(getDate)){
-                map.addStatement("o.$N($N($N, $N))", setter, bind, N_Cursor, i + "");
+            if (bind.equalsIgnoreCase(getDate)){
+                // 复用实体上已有的Date
+                values.add(bind + "(" + N_Cursor + ", " + i + ", " + getReuseDate(filedName) + ")");
+            }else if (bind.equalsIgnoreCase(getBoolean)){
+                values.add(bind + "(" + N_Cursor + ", " + i + ")");
             }else {
-                map.addStatement("o.$N($N.$N($N))", setter, N_Cursor, bind, i + "");
+                values.add(N_Cursor + "." + bind + "(" + i + ")");
             }
         }
 
-        map.addStatement("return o");
+        this.addMapStatements(map, values);
+
+
+        builder.addMethod(map.build());
+
+    }
+
+    private void addMapRowMethod(){
+
+        ClassName rowBlock = ClassName.get("net.sqlcipher", "CursorWindow", "RowBlock");
+
+        String N_block = "block";
+
+        MethodSpec.Builder map = MethodSpec.methodBuilder("mapRow")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(rowBlock, N_block)
+                .addParameter(TypeName.INT, "row")
+                .addParameter(entityClass, "o")
+                .addAnnotation(Override.class)
+                .returns(entityClass);
+
+        String getBoolean = "getBoolean";
+        String getDate = "getDate";
+
+        final List<String> fieldNames = this.metadata.getFieldNames();
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < fieldNames.size(); i++) {
+            String filedName = fieldNames.get(i);
+            String typeName = this.metadata.getFieldTypeName(i);
+            final String bind = Constants.JAVA_TO_SQLITE_GET.get(typeName);
+            if (bind.equalsIgnoreCase(getDate)){
+                values.add(bind + "(" + N_block + ", row, " + i + ", " + getReuseDate(filedName) + ")");
+            }else if (bind.equalsIgnoreCase(getBoolean)){
+                values.add(bind + "(" + N_block + ", row, " + i + ")");
+            }else {
+                values.add(N_block + "." + bind + "(row, " + i + ")");
+            }
+        }
 
+        this.addMapStatements(map, values);
 
         builder.addMethod(map.build());
 
     }
 
+    /**
+     * 可复用的Date. 构造函数映射时实体不可变, 不复用
+     */
+    private String getReuseDate(String filedName){
+        if (this.metadata.isConstructorMapping()){
+            return "null";
+        }
+        return "o." + this.metadata.getReader(filedName);
+    }
+
+    /**
+     * 按列值赋值到实体(setter或字段), 或者调用构造函数创建实体
+     */
+    private void addMapStatements(MethodSpec.Builder map, List<String> values){
+        if (this.metadata.isConstructorMapping()){
+            map.addStatement("return new $T($L)", entityClass, Utils.join(values, ", "));
+            return;
+        }
+
+        map.beginControlFlow("if (o == null)")
+                .addStatement("o = new $T()", entityClass)
+                .endControlFlow();
+
+        final List<String> fieldNames = this.metadata.getFieldNames();
+        for (int i = 0; i < fieldNames.size(); i++) {
+            map.addStatement("o.$L", this.metadata.getWriter(fieldNames.get(i), values.get(i)));
+        }
+
+        map.addStatement("return o");
+    }
+
     private void addWrapRefListMethod(){
 
         final List<String> fieldNames = this.metadata.getFieldNames();
@@ -618,7 +965,6 @@ public class SqliteMapperClassGenerator {
         for (int i = 0; i < refNames.size(); i++) {
 
             String name = refNames.get(i);
-            String refSetter = this.metadata.getSetter(name);
             final VariableElement variableElement = refFields.get(i);
             TypeMirror refE = variableElement.asType();
 
@@ -637,7 +983,7 @@ public class SqliteMapperClassGenerator {
                 Utils.error("RefLink can't found original Field. class = " + this.className + ", refName=" + name + ", on=" + refLink.on());
             }
 
-            String onGetter = this.metadata.getGetter(refLink.on());
+            String onGetter = this.metadata.getReader(refLink.on());
             TypeName onType = this.metadata.getBoxTypeName(onField.asType());
             if (onType == null){
                 onType = TypeName.get(onField.asType());
@@ -650,12 +996,13 @@ public class SqliteMapperClassGenerator {
 
             MethodSpec.Builder wrap = MethodSpec.methodBuilder("wrapRef" + Utils.upperFirstChar(name))
                     .addModifiers(Modifier.PUBLIC)
-                    .addParameter(listOfClass, "list");
+                    .addParameter(listOfClass, "list")
+                    .addParameter(TypeName.INT, "depth");
 
             if (typeStringName.equals(onType.toString())){
-                genWrapListMethodForStringType(refSetter, refE, onGetter, onType, wrap);
+                genWrapListMethodForStringType(name, refE, onGetter, onType, wrap);
             }else{
-                genWrapListMethodForPrimitiveType(refSetter, refE, onGetter, onType, wrap);
+                genWrapListMethodForPrimitiveType(name, refE, onGetter, onType, wrap);
             }
 
             final MethodSpec methodSpec = wrap.build();
@@ -664,17 +1011,18 @@ public class SqliteMapperClassGenerator {
 
         }
 
-        MethodSpec.Builder wrapAll = MethodSpec.methodBuilder("wrapRef")
-                .addModifiers(Modifier.PUBLIC)
+        MethodSpec.Builder wrapAll = MethodSpec.methodBuilder("doWrapRef")
+                .addModifiers(Modifier.PROTECTED)
                 .addAnnotation(Override.class)
-                .addParameter(listOfClass, "list");
+                .addParameter(listOfClass, "list")
+                .addParameter(TypeName.INT, "depth");
 
-        wrapAll.beginControlFlow("if(list == null || list.size() == 0)");
+        wrapAll.beginControlFlow("if(list == null || list.size() == 0 || depth <= 0)");
         wrapAll.addStatement("return");
         wrapAll.endControlFlow();
 
         for (int i = 0; i < methodSpecs.size(); i++) {
-            wrapAll.addStatement("$N(list)", methodSpecs.get(i).name);
+            wrapAll.addStatement("$N(list, depth)", methodSpecs.get(i).name);
         }
 
         builder.addMethod(wrapAll.build());
@@ -693,7 +1041,6 @@ public class SqliteMapperClassGenerator {
         for (int i = 0; i < refNames.size(); i++) {
 
             String name = refNames.get(i);
-            String refSetter = this.metadata.getSetter(name);
             final VariableElement variableElement = refFields.get(i);
             TypeMirror refE = variableElement.asType();
 
@@ -710,7 +1057,7 @@ public class SqliteMapperClassGenerator {
                 Utils.error("RefLink can't found original Field. class = " + this.className + ", refName=" + name + ", on=" + refLink.on());
             }
 
-            String onGetter = this.metadata.getGetter(refLink.on());
+            String onGetter = this.metadata.getReader(refLink.on());
             TypeName onType = this.metadata.getBoxTypeName(onField.asType());
             if (onType == null){
                 onType = TypeName.get(onField.asType());
@@ -723,12 +1070,13 @@ public class SqliteMapperClassGenerator {
 
             MethodSpec.Builder wrap = MethodSpec.methodBuilder("wrapRef" + Utils.upperFirstChar(name))
                     .addModifiers(Modifier.PUBLIC)
-                    .addParameter(entityClass, "o");
+                    .addParameter(entityClass, "o")
+                    .addParameter(TypeName.INT, "depth");
 
             if (typeStringName.equals(onType.toString())){
-                genWrapMethodForStringType(refSetter, refE, onGetter, onType, wrap);
+                genWrapMethodForStringType(name, wrap);
             }else{
-                genWrapMethodForPrimitiveType(refSetter, refE, onGetter, onType, wrap);
+                genWrapMethodForPrimitiveType(name, refE, onGetter, onType, wrap);
             }
 
             final MethodSpec methodSpec = wrap.build();
@@ -737,17 +1085,18 @@ public class SqliteMapperClassGenerator {
 
         }
 
-        MethodSpec.Builder wrapAll = MethodSpec.methodBuilder("wrapRef")
-                .addModifiers(Modifier.PUBLIC)
+        MethodSpec.Builder wrapAll = MethodSpec.methodBuilder("doWrapRef")
+                .addModifiers(Modifier.PROTECTED)
                 .addAnnotation(Override.class)
-                .addParameter(entityClass, "o");
+                .addParameter(entityClass, "o")
+                .addParameter(TypeName.INT, "depth");
 
-        wrapAll.beginControlFlow("if(o == null)");
+        wrapAll.beginControlFlow("if(o == null || depth <= 0)");
         wrapAll.addStatement("return");
         wrapAll.endControlFlow();
 
         for (int i = 0; i < methodSpecs.size(); i++) {
-            wrapAll.addStatement("$N(o)", methodSpecs.get(i).name);
+            wrapAll.addStatement("$N(o, depth)", methodSpecs.get(i).name);
         }
 
         builder.addMethod(wrapAll.build());
@@ -756,30 +1105,15 @@ public class SqliteMapperClassGenerator {
 
     /**
      *
-     * 逗号分隔的字段
+     * 逗号分隔的字段, 复用列表版本以保持id顺序
      *
-     * @param refSetter
-     * @param refE
-     * @param onGetter
-     * @param onType
+     * @param name
      * @param wrap
      */
-    private void genWrapMethodForStringType(String refSetter, TypeMirror refE, String onGetter, TypeName onType, MethodSpec.Builder wrap) {
-
-        TypeName targetClassName = TypeName.get(refE);
-        ClassName targetMapperClass = null;
+    private void genWrapMethodForStringType(String name, MethodSpec.Builder wrap) {
 
-        if (isListType(refE) || isSetType(refE)){
-            ParameterizedTypeName className = (ParameterizedTypeName)TypeName.get(refE);
-            targetClassName = className.typeArguments.get(0);
-        }
-
-        targetMapperClass = ClassName.bestGuess(Utils.getMapperClassName(targetClassName.toString()));
-        TypeName listOfTarget = ParameterizedTypeName.get(listType, targetClassName);
-
-        wrap.addStatement("$T ids = o.$N()", onType, onGetter);
-        wrap.addStatement("$T refList = $T.instance.getsWithRef(ids)", listOfTarget, targetMapperClass);
-        wrap.addStatement("o.$N(refList)", refSetter);
+        ClassName collections = ClassName.get("java.util", "Collections");
+        wrap.addStatement("wrapRef$N($T.singletonList(o), depth)", Utils.upperFirstChar(name), collections);
 
     }
 
@@ -787,13 +1121,13 @@ public class SqliteMapperClassGenerator {
      *
      * 原生类型(int, long)
      *
-     * @param refSetter
+     * @param refName
      * @param refE
      * @param onGetter
      * @param onType
      * @param wrap
      */
-    private void genWrapMethodForPrimitiveType(String refSetter, TypeMirror refE, String onGetter, TypeName onType, MethodSpec.Builder wrap) {
+    private void genWrapMethodForPrimitiveType(String refName, TypeMirror refE, String onGetter, TypeName onType, MethodSpec.Builder wrap) {
 
         TypeName targetClassName = TypeName.get(refE);
         ClassName targetMapperClass = null;
@@ -805,45 +1139,100 @@ public class SqliteMapperClassGenerator {
 
         targetMapperClass = ClassName.bestGuess(Utils.getMapperClassName(targetClassName.toString()));
 
-        wrap.addStatement("$T id = o.$N()", onType, onGetter);
+        wrap.addStatement("$T id = o.$L", onType, onGetter);
         wrap.beginControlFlow("if (id == null)");
         wrap.addStatement("return");
         wrap.endControlFlow();
-        wrap.addStatement("$T refItem = $T.instance.getWithRef(id)", targetClassName, targetMapperClass);
-        wrap.addStatement("o.$N(refItem)", refSetter);
+        wrap.addStatement("$T refItem = $T.instance.getForRef(id)", targetClassName, targetMapperClass);
+        wrap.beginControlFlow("if (depth > 1)");
+        wrap.addStatement("$T.instance.wrapRef(refItem, depth - 1)", targetMapperClass);
+        wrap.endControlFlow();
+        wrap.addStatement("o.$L", this.metadata.getWriter(refName, "refItem"));
 
     }
 
     /**
      *
      * 逗号分隔的字段
+     * 汇总整个列表的id, 去重后一次批量读取, 再按各自的id顺序分发
      *
-     * @param refSetter
+     * @param refName
      * @param refE
      * @param onGetter
      * @param onType
      * @param wrap
      */
-    private void genWrapListMethodForStringType(String refSetter, TypeMirror refE, String onGetter, TypeName onType, MethodSpec.Builder wrap) {
+    private void genWrapListMethodForStringType(String refName, TypeMirror refE, String onGetter, TypeName onType, MethodSpec.Builder wrap) {
 
         TypeName targetClassName = TypeName.get(refE);
         ClassName targetMapperClass = null;
+        ClassName refCollectionClass = ClassName.get("java.util", "ArrayList");
 
         if (isListType(refE) || isSetType(refE)){
             ParameterizedTypeName className = (ParameterizedTypeName)TypeName.get(refE);
             targetClassName = className.typeArguments.get(0);
         }
+        if (isSetType(refE)){
+            refCollectionClass = ClassName.get("java.util", "LinkedHashSet");
+        }
 
         targetMapperClass = ClassName.bestGuess(Utils.getMapperClassName(targetClassName.toString()));
         TypeName listOfTarget = ParameterizedTypeName.get(listType, targetClassName);
-
+        TypeName mapOfTarget = ParameterizedTypeName.get(hashMapType, TypeName.get(String.class), targetClassName);
+        TypeName refCollection = ParameterizedTypeName.get(refCollectionClass, targetClassName);
+        TypeName setOfString = ParameterizedTypeName.get(setType, TypeName.get(String.class));
+        TypeName hashSetOfString = ParameterizedTypeName.get(hashSetType, TypeName.get(String.class));
+        String targetPkGetter = getTargetPkReader(targetClassName);
+
+        wrap.addStatement("String[][] refIds = new String[list.size()][]");
+        wrap.addStatement("$T ids = new $T()", setOfString, hashSetOfString);
         wrap.beginControlFlow("for (int i = 0; i < list.size(); i++)");
+        wrap.addStatement("$T value = list.get(i).$L", onType, onGetter);
+        wrap.beginControlFlow("if (value == null || value.length() == 0)");
+        wrap.addStatement("continue");
+        wrap.endControlFlow();
+        wrap.addStatement("String[] parts = value.split(\",\")");
+        wrap.beginControlFlow("for (int k = 0; k < parts.length; k++)");
+        wrap.addStatement("parts[k] = parts[k].trim()");
+        wrap.beginControlFlow("if (parts[k].length() > 0)");
+        wrap.addStatement("ids.add(parts[k])");
+        wrap.endControlFlow();
+        wrap.endControlFlow();
+        wrap.addStatement("refIds[i] = parts");
+        wrap.endControlFlow();
 
-        wrap.addStatement("$T item = list.get(i)", entityClass);
-        wrap.addStatement("$T ids = item.$N()", onType, onGetter);
-        wrap.addStatement("$T refList = $T.instance.getsWithRef(ids)", listOfTarget, targetMapperClass);
-        wrap.addStatement("item.$N(refList)", refSetter);
+        wrap.beginControlFlow("if (ids.size() == 0)");
+        wrap.addStatement("return");
+        wrap.endControlFlow();
+
+        wrap.addStatement("$T refList = $T.instance.getsForRef(ids.toArray(new String[ids.size()]))", listOfTarget, targetMapperClass);
+        wrap.beginControlFlow("if (depth > 1)");
+        wrap.addStatement("$T.instance.wrapRef(refList, depth - 1)", targetMapperClass);
+        wrap.endControlFlow();
+
+        // 按主键的字符串建索引, 与逗号分隔的id直接比较, 适用于任意类型的主键
+        wrap.addStatement("$T refMap = new $T(refList.size() * 2)", mapOfTarget, mapOfTarget);
+        wrap.beginControlFlow("for (int j = 0; j < refList.size(); j++)");
+        wrap.addStatement("$T targetItem = refList.get(j)", targetClassName);
+        wrap.addStatement("refMap.put(String.valueOf(targetItem.$L), targetItem)", targetPkGetter);
+        wrap.endControlFlow();
 
+        wrap.beginControlFlow("for (int i = 0; i < list.size(); i++)");
+        wrap.addStatement("String[] parts = refIds[i]");
+        wrap.beginControlFlow("if (parts == null)");
+        wrap.addStatement("continue");
+        wrap.endControlFlow();
+        wrap.addStatement("$T refItems = new $T(parts.length)", refCollection, refCollection);
+        wrap.beginControlFlow("for (int k = 0; k < parts.length; k++)");
+        wrap.beginControlFlow("if (parts[k].length() == 0)");
+        wrap.addStatement("continue");
+        wrap.endControlFlow();
+        wrap.addStatement("$T targetItem = refMap.get(parts[k])", targetClassName);
+        wrap.beginControlFlow("if (targetItem != null)");
+        wrap.addStatement("refItems.add(targetItem)");
+        wrap.endControlFlow();
+        wrap.endControlFlow();
+        wrap.addStatement("list.get(i).$L", this.metadata.getWriter(refName, "refItems"));
         wrap.endControlFlow();
 
     }
@@ -852,13 +1241,13 @@ public class SqliteMapperClassGenerator {
      *
      * 原生类型(int, long)
      *
-     * @param refSetter
+     * @param refName
      * @param refE
      * @param onGetter
      * @param onType
      * @param wrap
      */
-    private void genWrapListMethodForPrimitiveType(String refSetter, TypeMirror refE, String onGetter, TypeName onType, MethodSpec.Builder wrap) {
+    private void genWrapListMethodForPrimitiveType(String refName, TypeMirror refE, String onGetter, TypeName onType, MethodSpec.Builder wrap) {
 
         TypeName setOfOn = ParameterizedTypeName.get(setType, onType);
         TypeName hashSetOfOn = ParameterizedTypeName.get(hashSetType, onType);
@@ -866,7 +1255,7 @@ public class SqliteMapperClassGenerator {
         wrap.addStatement("$T ids = new $T()", setOfOn, hashSetOfOn);
         wrap.beginControlFlow("for (int i = 0; i < list.size(); i++)");
         wrap.addStatement("$T item = list.get(i)", entityClass);
-        wrap.addStatement("ids.add(item.$N())", onGetter);
+        wrap.addStatement("ids.add(item.$L)", onGetter);
         wrap.endControlFlow();
 
         TypeName targetClassName = TypeName.get(refE);
@@ -879,23 +1268,35 @@ public class SqliteMapperClassGenerator {
 
         targetMapperClass = ClassName.bestGuess(Utils.getMapperClassName(targetClassName.toString()));
         TypeName listOfTarget = ParameterizedTypeName.get(listType, targetClassName);
-        wrap.addStatement("$T refList = $T.instance.getsWithRef(ids)", listOfTarget, targetMapperClass);
+        TypeName mapOfTarget = ParameterizedTypeName.get(longMapType, targetClassName);
+        String targetPkGetter = getTargetPkReader(targetClassName);
 
-        wrap.beginControlFlow("for (int i = 0; i < list.size(); i++)"); //1
-        wrap.addStatement("$T item = list.get(i)", entityClass);
+        wrap.addStatement("$T refList = $T.instance.getsForRef(ids)", listOfTarget, targetMapperClass);
+        wrap.beginControlFlow("if (refList.size() == 0)");
+        wrap.addStatement("return");
+        wrap.endControlFlow();
+        wrap.beginControlFlow("if (depth > 1)");
+        wrap.addStatement("$T.instance.wrapRef(refList, depth - 1)", targetMapperClass);
+        wrap.endControlFlow();
 
-        wrap.beginControlFlow("for (int j = 0; j < refList.size(); j++)"); //2
+        // 按关联实体主键建哈希索引(long键不装箱), 再一次遍历挂接, O(n)
+        wrap.addStatement("$T refMap = new $T(refList.size())", mapOfTarget, mapOfTarget);
+        wrap.beginControlFlow("for (int j = 0; j < refList.size(); j++)");
         wrap.addStatement("$T targetItem = refList.get(j)", targetClassName);
+        wrap.addStatement("refMap.put((long) targetItem.$L, targetItem)", targetPkGetter);
+        wrap.endControlFlow();
 
-        wrap.beginControlFlow("if (targetItem.getId() == item.$N())", onGetter); //3 每个实体一定有一个方法是getId()
-        wrap.addStatement("item.$N(targetItem)", refSetter);
-        wrap.addStatement("break");
-
-        wrap.endControlFlow(); //3
-
-        wrap.endControlFlow(); // 2
-
-        wrap.endControlFlow(); //1
+        wrap.beginControlFlow("for (int i = 0; i < list.size(); i++)");
+        wrap.addStatement("$T item = list.get(i)", entityClass);
+        wrap.addStatement("$T key = item.$L", onType, onGetter);
+        wrap.beginControlFlow("if (key == null)");
+        wrap.addStatement("continue");
+        wrap.endControlFlow();
+        wrap.addStatement("$T targetItem = refMap.get(key.longValue())", targetClassName);
+        wrap.beginControlFlow("if (targetItem != null)");
+        wrap.addStatement("item.$L", this.metadata.getWriter(refName, "targetItem"));
+        wrap.endControlFlow();
+        wrap.endControlFlow();
     }
 
 }
@@ -48,6 +48,17 @@ public class Utils {
         return input.substring(0, 1).toUpperCase() + input.substring(1);
     }
 
+    public static String join(List<String> items, String separator) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                s.append(separator);
+            }
+            s.append(items.get(i));
+        }
+        return s.toString();
+    }
+
     public static String getMapperClassName(String clazz){
         return clazz + Constants.MAPPER_CLASS_SUFFIX;
     }
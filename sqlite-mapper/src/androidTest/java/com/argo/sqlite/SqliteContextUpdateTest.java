@@ -0,0 +1,87 @@
+package com.argo.sqlite;
+
+import android.test.AndroidTestCase;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * update锁冲突重试: 退避期间不持有SqliteContext的锁
+ */
+public class SqliteContextUpdateTest extends AndroidTestCase {
+
+    private static final long BACKOFF_MILLIS = 1000;
+
+    private SqliteContext dbContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SQLiteDatabase.loadLibs(getContext());
+        dbContext = new SqliteContext(getContext(), "update-test", "update-test".getBytes("UTF-8"));
+        dbContext.setEnabled(true);
+        dbContext.deleteFile();
+        dbContext.ensureDbOpen();
+        SqliteRetryPolicy policy = new SqliteRetryPolicy();
+        policy.setBaseBackoffMillis(BACKOFF_MILLIS * 2);
+        policy.setMaxBackoffMillis(BACKOFF_MILLIS * 2);
+        dbContext.setRetryPolicy(policy);
+        dbContext.getDatabase().execSQL("create table t (id integer primary key)");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        dbContext.close();
+        dbContext.deleteFile();
+        super.tearDown();
+    }
+
+    public void testSecondWriterRunsDuringBackoff() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicBoolean secondDone = new AtomicBoolean(false);
+        final AtomicBoolean secondBeforeRetry = new AtomicBoolean(false);
+        final CountDownLatch firstFailed = new CountDownLatch(1);
+        final AtomicBoolean firstOk = new AtomicBoolean(false);
+
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                firstOk.set(dbContext.update(new SqliteBlock<SQLiteDatabase>() {
+                    @Override
+                    public void execute(SQLiteDatabase engine) {
+                        if (attempts.incrementAndGet() == 1){
+                            firstFailed.countDown();
+                            throw new SQLiteException("error code 5: " + SqliteContext.DATABASE_IS_LOCKED);
+                        }
+                        secondBeforeRetry.set(secondDone.get());
+                        engine.execSQL("insert into t (id) values (1)");
+                    }
+                }));
+            }
+        });
+        first.start();
+        assertTrue(firstFailed.await(5, TimeUnit.SECONDS));
+
+        long ts = System.currentTimeMillis();
+        boolean ok = dbContext.update(new SqliteBlock<SQLiteDatabase>() {
+            @Override
+            public void execute(SQLiteDatabase engine) {
+                engine.execSQL("insert into t (id) values (2)");
+            }
+        });
+        secondDone.set(true);
+        long elapsed = System.currentTimeMillis() - ts;
+
+        first.join();
+        assertTrue(ok);
+        assertTrue(firstOk.get());
+        assertEquals(2, attempts.get());
+        assertTrue("second writer waited " + elapsed + " ms", elapsed < BACKOFF_MILLIS);
+        assertTrue(secondBeforeRetry.get());
+    }
+}
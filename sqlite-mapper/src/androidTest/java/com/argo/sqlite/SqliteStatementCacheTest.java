@@ -0,0 +1,90 @@
+package com.argo.sqlite;
+
+import android.test.AndroidTestCase;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 淘汰与使用并发: 淘汰的语句要等使用者release后才释放
+ */
+public class SqliteStatementCacheTest extends AndroidTestCase {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 500;
+    private static final int ROWS = 100;
+
+    private SQLiteDatabase database;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SQLiteDatabase.loadLibs(getContext());
+        database = SQLiteDatabase.create(null, "");
+        database.execSQL("create table t (id integer primary key)");
+        database.beginTransaction();
+        try {
+            for (int i = 1; i <= ROWS; i++) {
+                database.execSQL("insert into t (id) values (" + i + ")");
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        database.close();
+        super.tearDown();
+    }
+
+    public void testEvictWhileInUse() throws Exception {
+        final SqliteStatementCache cache = new SqliteStatementCache(2);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < ROUNDS && error.get() == null; i++) {
+                            int min = (i + offset) % ROWS;
+                            String where = "id > " + min;
+                            SQLiteStatement statement = cache.getStatement(database, SqliteMapper.OP_COUNT, where, null);
+                            if (statement == null){
+                                statement = cache.putStatement(database, SqliteMapper.OP_COUNT, where, null,
+                                        database.compileStatement("select count(1) from t where " + where));
+                            }
+                            try {
+                                long count;
+                                synchronized (statement){
+                                    count = statement.simpleQueryForLong();
+                                }
+                                assertEquals(ROWS - min, count);
+                            } finally {
+                                cache.release(statement);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        cache.clear();
+        if (error.get() != null){
+            throw new AssertionError(error.get());
+        }
+    }
+}
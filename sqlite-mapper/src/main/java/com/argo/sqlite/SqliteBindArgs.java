@@ -0,0 +1,209 @@
+package com.argo.sqlite;
+
+import net.sqlcipher.database.SQLiteArgsBinder;
+import net.sqlcipher.database.SQLiteProgram;
+
+import java.util.Date;
+
+/**
+ * 按类型绑定的查询参数, long/double用bindLong/bindDouble绑定, 不转成字符串.
+ * 可重复使用: clear()后重新add, 数组只在容量不足时扩大.
+ * 每个线程可用obtain()取得一个复用的实例. 查询创建时复制参数值, rawQueryWithBinder返回后即可再次obtain
+ */
+public class SqliteBindArgs implements SQLiteArgsBinder {
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_DOUBLE = 2;
+    private static final byte TYPE_STRING = 3;
+    private static final byte TYPE_BLOB = 4;
+
+    private static final ThreadLocal<SqliteBindArgs> LOCAL = new ThreadLocal<SqliteBindArgs>(){
+        @Override
+        protected SqliteBindArgs initialValue() {
+            return new SqliteBindArgs();
+        }
+    };
+
+    private byte[] types;
+    private long[] longs;
+    private double[] doubles;
+    private Object[] objects;
+    private int size;
+
+    public SqliteBindArgs() {
+        this(8);
+    }
+
+    public SqliteBindArgs(int capacity) {
+        capacity = Math.max(1, capacity);
+        this.types = new byte[capacity];
+        this.longs = new long[capacity];
+        this.doubles = new double[capacity];
+        this.objects = new Object[capacity];
+    }
+
+    /**
+     * 当前线程复用的实例, 已清空
+     * @return
+     */
+    public static SqliteBindArgs obtain(){
+        return LOCAL.get().clear();
+    }
+
+    public SqliteBindArgs clear(){
+        for (int i = 0; i < size; i++) {
+            objects[i] = null;
+        }
+        size = 0;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public SqliteBindArgs add(long value){
+        int i = next(TYPE_LONG);
+        longs[i] = value;
+        return this;
+    }
+
+    public SqliteBindArgs add(double value){
+        int i = next(TYPE_DOUBLE);
+        doubles[i] = value;
+        return this;
+    }
+
+    public SqliteBindArgs add(boolean value){
+        return add(value ? 1L : 0L);
+    }
+
+    /**
+     * 按毫秒数绑定, 与Mapper保存Date的方式一致
+     * @param value
+     * @return
+     */
+    public SqliteBindArgs add(Date value){
+        return value == null ? addNull() : add(value.getTime());
+    }
+
+    public SqliteBindArgs add(String value){
+        if (value == null){
+            return addNull();
+        }
+        int i = next(TYPE_STRING);
+        objects[i] = value;
+        return this;
+    }
+
+    public SqliteBindArgs add(byte[] value){
+        if (value == null){
+            return addNull();
+        }
+        int i = next(TYPE_BLOB);
+        objects[i] = value;
+        return this;
+    }
+
+    public SqliteBindArgs addNull(){
+        next(TYPE_NULL);
+        return this;
+    }
+
+    /**
+     * 按运行时类型添加, 与SqliteMapper.bindArgs的规则相同
+     * @param value
+     * @return
+     */
+    public SqliteBindArgs add(Object value){
+        if (value == null){
+            return addNull();
+        }else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte){
+            return add(((Number) value).longValue());
+        }else if (value instanceof Double || value instanceof Float){
+            return add(((Number) value).doubleValue());
+        }else if (value instanceof Boolean){
+            return add(((Boolean) value).booleanValue());
+        }else if (value instanceof Date){
+            return add((Date) value);
+        }else if (value instanceof byte[]){
+            return add((byte[]) value);
+        }
+        return add(value.toString());
+    }
+
+    @Override
+    public void bindTo(SQLiteProgram program) {
+        program.clearBindings();
+        for (int i = 0; i < size; i++) {
+            int index = i + 1;
+            switch (types[i]){
+                case TYPE_LONG:
+                    program.bindLong(index, longs[i]);
+                    break;
+                case TYPE_DOUBLE:
+                    program.bindDouble(index, doubles[i]);
+                    break;
+                case TYPE_STRING:
+                    program.bindString(index, (String) objects[i]);
+                    break;
+                case TYPE_BLOB:
+                    program.bindBlob(index, (byte[]) objects[i]);
+                    break;
+                default:
+                    program.bindNull(index);
+                    break;
+            }
+        }
+    }
+
+    private int next(byte type){
+        if (size == types.length){
+            int capacity = size * 2;
+            byte[] types = new byte[capacity];
+            long[] longs = new long[capacity];
+            double[] doubles = new double[capacity];
+            Object[] objects = new Object[capacity];
+            System.arraycopy(this.types, 0, types, 0, size);
+            System.arraycopy(this.longs, 0, longs, 0, size);
+            System.arraycopy(this.doubles, 0, doubles, 0, size);
+            System.arraycopy(this.objects, 0, objects, 0, size);
+            this.types = types;
+            this.longs = longs;
+            this.doubles = doubles;
+            this.objects = objects;
+        }
+        types[size] = type;
+        return size++;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("SqliteBindArgs{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0){
+                sb.append(", ");
+            }
+            switch (types[i]){
+                case TYPE_LONG:
+                    sb.append(longs[i]);
+                    break;
+                case TYPE_DOUBLE:
+                    sb.append(doubles[i]);
+                    break;
+                case TYPE_STRING:
+                    sb.append('\'').append(objects[i]).append('\'');
+                    break;
+                case TYPE_BLOB:
+                    sb.append("<blob>");
+                    break;
+                default:
+                    sb.append("null");
+                    break;
+            }
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+}
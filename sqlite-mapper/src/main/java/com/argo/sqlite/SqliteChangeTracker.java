@@ -0,0 +1,199 @@
+package com.argo.sqlite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * 记录写过的表, 事务提交后按表合并通知SqliteTableObserver
+ * 1. 事务中的写按savepoint分层记在pending, ROLLBACK TO时丢弃该层
+ * 2. 数据库连接的事务结束(COMMIT执行成功)后onTransactionEnd发布, 回滚或COMMIT失败时丢弃
+ * 3. 不在事务中的写(自动提交)立即发布
+ */
+public class SqliteChangeTracker {
+
+    /**
+     * 观察的表
+     */
+    private static final class Registration {
+
+        final SqliteTableObserver observer;
+        final Set<String> tables;
+
+        Registration(SqliteTableObserver observer, Set<String> tables) {
+            this.observer = observer;
+            this.tables = tables;
+        }
+
+        boolean matches(Set<String> changed){
+            for (String table : changed) {
+                if (tables.contains(table)){
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final long EXECUTOR_KEEP_ALIVE_SECONDS = 30;
+
+    private final SqliteContext dbContext;
+    private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+
+    /**
+     * 第0层是事务, 之后每层对应一个savepoint
+     */
+    private final List<Set<String>> pending = new ArrayList<Set<String>>();
+
+    private ScheduledExecutorService executor;
+
+    public SqliteChangeTracker(SqliteContext dbContext) {
+        this.dbContext = dbContext;
+    }
+
+    /**
+     * 观察表的变化
+     * @param observer
+     * @param tables
+     */
+    public void addObserver(SqliteTableObserver observer, Set<String> tables){
+        registrations.add(new Registration(observer, new HashSet<String>(tables)));
+    }
+
+    public void removeObserver(SqliteTableObserver observer){
+        for (Registration registration : registrations) {
+            if (registration.observer == observer){
+                registrations.remove(registration);
+            }
+        }
+    }
+
+    public boolean hasObservers(){
+        return !registrations.isEmpty();
+    }
+
+    /**
+     * 写表之后调用
+     * @param table
+     * @param inTransaction 当前线程是否在事务中
+     */
+    public void markChanged(String table, boolean inTransaction){
+        if (registrations.isEmpty()){
+            return;
+        }
+        if (inTransaction){
+            synchronized (this){
+                if (pending.isEmpty()){
+                    pending.add(new HashSet<String>());
+                }
+                pending.get(pending.size() - 1).add(table);
+            }
+            return;
+        }
+        publish(Collections.singleton(table));
+    }
+
+    /**
+     * 执行SAVEPOINT之后调用
+     */
+    public synchronized void savepoint(){
+        if (registrations.isEmpty()){
+            return;
+        }
+        if (pending.isEmpty()){
+            pending.add(new HashSet<String>());
+        }
+        pending.add(new HashSet<String>());
+    }
+
+    /**
+     * 执行RELEASE之后调用, 合并到上一层
+     */
+    public synchronized void releaseSavepoint(){
+        if (pending.size() < 2){
+            return;
+        }
+        Set<String> tables = pending.remove(pending.size() - 1);
+        pending.get(pending.size() - 1).addAll(tables);
+    }
+
+    /**
+     * 执行ROLLBACK TO和RELEASE之后调用, 丢弃该层
+     */
+    public synchronized void rollbackSavepoint(){
+        if (pending.size() < 2){
+            return;
+        }
+        pending.remove(pending.size() - 1);
+    }
+
+    /**
+     * 数据库连接的事务结束后调用(SQLiteDatabase.TransactionEndListener)
+     * @param committed COMMIT是否执行成功
+     */
+    public void onTransactionEnd(boolean committed){
+        Set<String> tables;
+        synchronized (this){
+            if (pending.isEmpty()){
+                return;
+            }
+            tables = pending.get(0);
+            for (int i = 1; i < pending.size(); i++) {
+                tables.addAll(pending.get(i));
+            }
+            pending.clear();
+        }
+        if (committed && !tables.isEmpty()){
+            publish(Collections.unmodifiableSet(tables));
+        }
+    }
+
+    private void publish(Set<String> tables){
+        for (Registration registration : registrations) {
+            if (registration.matches(tables)){
+                try {
+                    registration.observer.onTablesChanged(tables);
+                } catch (Exception e) {
+                    Timber.e(e, "db-%s notify error. tables: %s", dbContext.getTag(), tables);
+                }
+            }
+        }
+    }
+
+    /**
+     * SqliteLiveQuery重新查询使用的线程, 空闲时退出
+     * @return
+     */
+    public synchronized ScheduledExecutorService getExecutor(){
+        if (executor == null){
+            ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "sqlite-notify-" + dbContext.getTag());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            pool.setKeepAliveTime(EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+
+    /**
+     * 数据库关闭时调用, 丢弃未提交的表. 观察者保留, 重新打开后继续有效
+     */
+    public synchronized void reset(){
+        pending.clear();
+    }
+}
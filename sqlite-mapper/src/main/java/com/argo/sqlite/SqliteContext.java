@@ -12,10 +12,15 @@ import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import timber.log.Timber;
 
@@ -40,6 +45,25 @@ public class SqliteContext {
     private boolean enabled = false;
     private SQLiteDatabase database;
 
+    private SqliteRetryPolicy retryPolicy = new SqliteRetryPolicy();
+    private SqliteLockedListener lockedListener;
+    private volatile SqliteMetricsListener metricsListener;
+
+    private SqliteWriteQueue writeQueue;
+    private final List<SqliteMapper> mappers = new ArrayList<SqliteMapper>();
+    private final SqliteChangeTracker changeTracker = new SqliteChangeTracker(this);
+
+    private boolean walEnabled = false;
+    private int readPoolSize = 0;
+    private volatile SQLiteDatabase[] readers;
+    private final AtomicInteger readerSeq = new AtomicInteger();
+    private final ThreadLocal<Integer> readerSlot = new ThreadLocal<Integer>(){
+        @Override
+        protected Integer initialValue() {
+            return readerSeq.getAndIncrement();
+        }
+    };
+
     public SqliteContext(Context context, byte[] salt) {
         File file = context.getDatabasePath("dump");
         this.context = context;
@@ -92,6 +116,124 @@ public class SqliteContext {
         return database;
     }
 
+    public SqliteRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * 数据库被锁时的处理策略, 需要在open之前设置busyTimeout
+     * @param retryPolicy
+     */
+    public void setRetryPolicy(SqliteRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * 表变化的通知, 见SqliteMapper.observe
+     * @return
+     */
+    public SqliteChangeTracker getChangeTracker() {
+        return changeTracker;
+    }
+
+    public SqliteLockedListener getLockedListener() {
+        return lockedListener;
+    }
+
+    public void setLockedListener(SqliteLockedListener lockedListener) {
+        this.lockedListener = lockedListener;
+    }
+
+    public SqliteMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * 语句, 锁等待, 事务的耗时统计, 如SqliteMetrics. null为关闭
+     * @param metricsListener
+     */
+    public void setMetricsListener(SqliteMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        SQLiteDatabase db = this.database;
+        if (db != null){
+            db.setMetricsListener(metricsListener);
+        }
+        SQLiteDatabase[] pool = readers;
+        if (pool != null){
+            synchronized (pool){
+                for (int i = 0; i < pool.length; i++) {
+                    if (pool[i] != null){
+                        pool[i].setMetricsListener(metricsListener);
+                    }
+                }
+            }
+        }
+    }
+
+    public boolean isWalEnabled() {
+        return walEnabled;
+    }
+
+    /**
+     * 开启WAL模式, 读操作使用readPoolSize个只读连接, 写操作仍使用唯一的写连接.
+     * 需要在open之前调用
+     * @param readPoolSize
+     */
+    public synchronized void enableWal(int readPoolSize) {
+        this.walEnabled = true;
+        this.readPoolSize = Math.max(1, readPoolSize);
+    }
+
+    /**
+     * 读操作使用的连接. 每个线程固定使用池中的一个只读连接;
+     * 当前线程持有写连接(如在update事务中)时返回写连接, 以便读到本事务的修改.
+     * close期间返回写连接, 已取得的只读连接被关闭后再查询抛IllegalStateException
+     * @return
+     */
+    public SQLiteDatabase getReadDatabase() {
+        SQLiteDatabase db = getDatabase();
+        SQLiteDatabase[] pool = readers;
+        if (pool == null || db == null || db.isDbLockedByCurrentThread()){
+            return db;
+        }
+
+        int slot = readerSlot.get() % pool.length;
+        SQLiteDatabase reader = pool[slot];
+        if (reader != null && readers == pool && reader.isOpen()){
+            return reader;
+        }
+        synchronized (pool){
+            // closeDatabase先置空readers再在pool锁内关闭, 锁内再检查一次
+            if (readers != pool || !db.isOpen()){
+                return db;
+            }
+            reader = pool[slot];
+            if (reader == null || !reader.isOpen()){
+                reader = openReader(db);
+                if (reader == null){
+                    return db;
+                }
+                pool[slot] = reader;
+            }
+        }
+        return reader;
+    }
+
+    private SQLiteDatabase openReader(SQLiteDatabase db){
+        try {
+            char[] secret = getChars(this.salt);
+            SQLiteDatabase reader = SQLiteDatabase.openDatabase(db.getPath(), secret, null, SQLiteDatabase.OPEN_READONLY);
+            reader.setLockingEnabled(true);
+            reader.setMetricsListener(metricsListener);
+            reader.rawExecSQL("PRAGMA busy_timeout = " + retryPolicy.getBusyTimeoutMillis());
+            SqliteLog.d("db-%s open reader: %s", getTag(), reader.getPath());
+            return reader;
+        } catch (Exception e) {
+            Timber.e(e, "db-%s open reader error, use writer.", getTag());
+            return null;
+        }
+    }
+
     public File getDbFolder(String name){
         if (name == null){
             return null;
@@ -110,7 +252,7 @@ public class SqliteContext {
         File folder = path.getParentFile();
         if (!folder.exists()){
             folder.mkdirs();
-            Timber.d("Create getDbFolder: %s", path);
+            SqliteLog.d("Create getDbFolder: %s", path);
         }
         return path;
     }
@@ -142,8 +284,17 @@ public class SqliteContext {
                 char[] secret = getChars(this.salt);
                 database = SQLiteDatabase.openOrCreateDatabase(path.getAbsolutePath(), secret, null);
                 database.setLockingEnabled(true);
+                database.setMetricsListener(metricsListener);
+                database.setTransactionEndListener(transactionEndListener);
+                database.rawExecSQL("PRAGMA busy_timeout = " + retryPolicy.getBusyTimeoutMillis());
+                if (walEnabled){
+                    database.rawExecSQL("PRAGMA journal_mode = WAL");
+                    readers = new SQLiteDatabase[readPoolSize];
+                }
                 this.enabled = true;
-                Timber.d("open db version: %s(%s)", path, database.getVersion());
+                if (SqliteLog.isDebug()){
+                    Timber.d("open db version: %s(%s)", path, database.getVersion());
+                }
             }
         } catch (Exception e) {
             Timber.e(e, "disabled mysqlite database.");
@@ -252,6 +403,9 @@ public class SqliteContext {
         if (!this.enabled){
             return;
         }
+        if (!mappers.contains(mapper)){
+            mappers.add(mapper);
+        }
         String tableName = mapper.getTableName();
         final Set<String> columns = this.getTableColumns(tableName);
         if (columns == null || columns.size() == 0) {
@@ -260,6 +414,101 @@ public class SqliteContext {
         }else{
             this.alterTable(tableName, mapper.getColumnInfo(), columns);
         }
+        this.syncIndexes(tableName, mapper.getIndexSql());
+    }
+
+    /**
+     * 读取某个表上显式创建的索引(不含主键等自动索引)
+     * @param table
+     * @return
+     */
+    public Set<String> getTableIndexes(String table){
+        this.ensureDbOpen();
+        Set<String> indexes = new HashSet<>();
+        String sql = "SELECT name FROM sqlite_master WHERE type='index' AND tbl_name=? AND sql IS NOT NULL";
+        Cursor cursor = this.database.rawQuery(sql, new String[]{table});
+        while (cursor.moveToNext()){
+            indexes.add(cursor.getString(0));
+        }
+        cursor.close();
+        return indexes;
+    }
+
+    /**
+     * 读取某个表上显式创建的索引及其create语句
+     * @param table
+     * @return 索引名 -> sqlite_master.sql
+     */
+    public Map<String, String> getTableIndexSql(String table){
+        this.ensureDbOpen();
+        Map<String, String> indexes = new HashMap<>();
+        String sql = "SELECT name, sql FROM sqlite_master WHERE type='index' AND tbl_name=? AND sql IS NOT NULL";
+        Cursor cursor = this.database.rawQuery(sql, new String[]{table});
+        while (cursor.moveToNext()){
+            indexes.put(cursor.getString(0), cursor.getString(1));
+        }
+        cursor.close();
+        return indexes;
+    }
+
+    /**
+     * 同步注解声明的索引:
+     * 1. 缺少的创建, 定义(列, unique)变了的删除后重建
+     * 2. 不再声明的只删除生成器命名的(idx_表名_, uidx_表名_), 应用自己创建的索引保留
+     * @param tableName
+     * @param indexes 索引名 -> create index语句
+     */
+    public synchronized void syncIndexes(String tableName, Map<String, String> indexes){
+        if (!this.enabled){
+            return;
+        }
+        ensureDbOpen();
+        final Map<String, String> olds = this.getTableIndexSql(tableName);
+        boolean changed = false;
+        for (String name : olds.keySet()){
+            if (!indexes.containsKey(name) && isGeneratedIndex(tableName, name)){
+                this.database.rawExecSQL("drop index if exists " + name);
+                changed = true;
+            }
+        }
+
+        for (Map.Entry<String, String> item : indexes.entrySet()){
+            String old = olds.get(item.getKey());
+            if (old != null && normalizeIndexSql(old).equals(normalizeIndexSql(item.getValue()))){
+                continue;
+            }
+            if (old != null){
+                this.database.rawExecSQL("drop index if exists " + item.getKey());
+            }
+            this.database.rawExecSQL(item.getValue());
+            changed = true;
+        }
+
+        if (changed){
+            int v = this.database.getVersion();
+            this.database.setVersion(v + 1);
+        }
+    }
+
+    private static boolean isGeneratedIndex(String tableName, String name){
+        return name.startsWith("idx_" + tableName + "_") || name.startsWith("uidx_" + tableName + "_");
+    }
+
+    /**
+     * 比较索引定义用: 小写, 去掉if not exists, 分号和空白(sqlite_master.sql不保存if not exists)
+     * @param sql
+     * @return
+     */
+    static String normalizeIndexSql(String sql){
+        String s = sql.toLowerCase(Locale.US).replace("if not exists", "");
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!Character.isWhitespace(c) && c != ';'){
+                sb.append(c);
+            }
+        }
+        return sb.toString();
     }
 
     /**
@@ -302,90 +551,178 @@ public class SqliteContext {
 
 
     /**
-     * 更新时使用事务管理
+     * 更新时使用事务管理. 锁冲突重试时, 退避期间释放本对象的锁, 其他写线程和close可以进入
      * @param block
+     * @return 事务是否提交成功
      */
-    public synchronized void update(SqliteBlock<SQLiteDatabase> block){
-        if (!this.enabled){
-            try {
-                block.execute(this.database);
-            } catch (Exception e) {
-                Timber.e(e, "update Error. db-%s", getTag());
-            }
-            return;
-        }
+    public boolean update(SqliteBlock<SQLiteDatabase> block){
         final long ts = System.currentTimeMillis();
-        ensureDbOpen();
-        boolean error = false;
-        try {
-            executeBlock(block);
-        }catch (SQLiteException e){
-            //net.sqlcipher.database.SQLiteException: error code 5: database is locked
-            if (e.getMessage().contains(DATABASE_IS_LOCKED)){
-                this.database.endTransaction();
-
-                foreceCloseWhenLocked();
-
+        final long tsNanos = System.nanoTime();
+        long waitMillis = 0;
+        for (int attempt = 0; ; attempt++) {
+            long backoff = -1;
+            synchronized (this){
+                if (!this.enabled){
+                    try {
+                        block.execute(this.database);
+                    } catch (Exception e) {
+                        Timber.e(e, "update Error. db-%s", getTag());
+                        return false;
+                    }
+                    return true;
+                }
+                if (attempt > 0 && this.database == null){
+                    // 退避期间被close
+                    Timber.w("db-%s closed while retrying update", getTag());
+                    return false;
+                }
+                ensureDbOpen();
+                boolean error = false;
                 try {
                     executeBlock(block);
-                } catch (Exception e1) {
+                }catch (SQLiteException e){
+                    //net.sqlcipher.database.SQLiteException: error code 5: database is locked
+                    boolean locked = isLocked(e);
+                    if (locked && attempt < retryPolicy.getMaxRetries() && retryPolicy.acquireRetry()){
+                        if (this.database.inTransaction()){
+                            this.database.endTransaction();
+                        }
+                        backoff = retryPolicy.backoffMillis(attempt);
+                        publishLocked(attempt + 1, backoff, waitMillis, true);
+                    }else {
+                        if (locked){
+                            publishLocked(attempt + 1, 0, waitMillis, false);
+                        }
+                        error = true;
+                        Timber.e(e, "update Error. db-%s", getTag());
+                    }
+                }
+                catch (Exception e) {
                     error = true;
                     Timber.e(e, "update Error. db-%s", getTag());
                 }
+
+                if (backoff < 0){
+                    if (this.database.inTransaction()){
+                        if (!error){
+                            this.database.setTransactionSuccessful();
+                        }
+                        this.database.endTransaction();
+                    }
+                    for (int i = 0; i < mappers.size(); i++) {
+                        mappers.get(i).onTransactionEnd();
+                    }
+                    SqliteMetricsListener metrics = this.metricsListener;
+                    if (metrics != null){
+                        metrics.onTransaction(System.nanoTime() - tsNanos, waitMillis, !error);
+                    }
+                    if (SqliteLog.isInfo()){
+                        long ts0 = System.currentTimeMillis() - ts;
+                        Timber.i("db-%s update complete duration: %s ms, lock wait: %s ms", getTag(), ts0, waitMillis);
+                    }
+                    return !error;
+                }
             }
-        }
-        catch (Exception e) {
-            error = true;
-            Timber.e(e, "update Error. db-%s", getTag());
-        }finally {
-            if (!error){
-                this.database.setTransactionSuccessful();
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e1) {
+                Thread.currentThread().interrupt();
             }
-            this.database.endTransaction();
-            long ts0 = System.currentTimeMillis() - ts;
-            Timber.i("db-%s update complete duration: %s ms", getTag(), ts0);
+            waitMillis += backoff;
         }
+    }
 
+    /**
+     * 异步更新, 写任务在单独的写线程里合并成事务执行(group commit)
+     * @param block
+     * @return 事务提交后完成
+     * @throws InterruptedException 写队列满时阻塞被中断
+     */
+    public Future<Boolean> updateAsync(SqliteBlock<SQLiteDatabase> block) throws InterruptedException {
+        return getWriteQueue().submit(block);
     }
 
-    private synchronized void foreceCloseWhenLocked(){
-        Timber.e("foreceCloseWhenLocked");
-        if (!this.enabled){
-            return;
+    /**
+     * 写队列, 第一次使用时启动
+     * @return
+     */
+    public synchronized SqliteWriteQueue getWriteQueue() {
+        if (writeQueue == null){
+            writeQueue = new SqliteWriteQueue(this);
         }
-        this.close();
-
-        try {
-            Thread.sleep(100);
-        } catch (InterruptedException e1) {
+        writeQueue.start();
+        return writeQueue;
+    }
 
+    /**
+     * 替换默认的写队列(容量, 批大小等), 需要在updateAsync之前设置
+     * @param writeQueue
+     */
+    public void setWriteQueue(SqliteWriteQueue writeQueue) {
+        SqliteWriteQueue old;
+        synchronized (this){
+            old = this.writeQueue;
+            this.writeQueue = writeQueue;
         }
+        if (old != null && old != writeQueue){
+            old.shutdown();
+        }
+    }
 
-        this.reopen();
+    /**
+     * 是否是锁冲突(可重试)
+     * @param e
+     * @return
+     */
+    static boolean isLocked(SQLiteException e){
+        return e.getMessage() != null && e.getMessage().contains(DATABASE_IS_LOCKED);
+    }
+
+    private void publishLocked(int attempt, long backoffMillis, long waitMillis, boolean retry){
+        Timber.w("db-%s locked, attempt: %s, backoff: %s ms, retry: %s", getTag(), attempt, backoffMillis, retry);
+        SqliteLockedListener listener = this.lockedListener;
+        if (listener != null){
+            listener.onLocked(new SqliteLockedEvent(getTag(), attempt, backoffMillis, waitMillis, retry));
+        }
     }
 
+    /**
+     * 事务回调, 每个事务共用
+     */
+    private final SQLiteTransactionListener transactionListener = new SQLiteTransactionListener() {
+        @Override
+        public void onBegin() {
+            SqliteLog.d("db-%s Transaction begin", getTag());
+        }
+
+        @Override
+        public void onCommit() {
+            SqliteLog.d("db-%s Transaction commit", getTag());
+        }
+
+        @Override
+        public void onRollback() {
+            SqliteLog.d("db-%s Transaction rollback", getTag());
+        }
+    };
+
+    /**
+     * 连接上的事务(包括不是update开始的)结束后发布变化的表
+     */
+    private final SQLiteDatabase.TransactionEndListener transactionEndListener = new SQLiteDatabase.TransactionEndListener() {
+        @Override
+        public void onTransactionEnd(boolean committed) {
+            changeTracker.onTransactionEnd(committed);
+        }
+    };
+
     public void executeBlock(SqliteBlock<SQLiteDatabase> block) throws Exception{
         if (!this.enabled){
             block.execute(this.database);
             return;
         }
-        Timber.d("%s db-%s update: %s", this, getTag(), database.getPath());
-        this.database.beginTransactionWithListener(new SQLiteTransactionListener() {
-            @Override
-            public void onBegin() {
-                Timber.d("%s db-%s Transaction begin: %s", this, getTag(), new Date());
-            }
-
-            @Override
-            public void onCommit() {
-                Timber.d("%s db-%s Transaction commit: %s", this, getTag(), new Date());
-            }
-
-            @Override
-            public void onRollback() {
-                Timber.d("%s db-%s Transaction rollback: %s", this, getTag(), new Date());
-            }
-        });
+        SqliteLog.d("%s db-%s update: %s", this, getTag(), database.getPath());
+        this.database.beginTransactionWithListener(transactionListener);
         block.execute(this.database);
     }
 
@@ -403,27 +740,64 @@ public class SqliteContext {
             return;
         }
         final long ts = System.currentTimeMillis();
+        final long tsNanos = System.nanoTime();
         ensureDbOpen();
         try {
-            Timber.d("db-%s query: %s, %s", getTag(), database.getPath(), tag);
-            block.execute(this.database);
+            SqliteLog.d("db-%s query: %s, %s", getTag(), database.getPath(), tag);
+            block.execute(this.getReadDatabase());
         } catch (Exception e) {
             Timber.e(e, "query Error. db-%s, %s", getTag(), tag);
         }finally {
-            long ts0 = System.currentTimeMillis() - ts;
-            Timber.i("db-%s query complete duration: %s ms, tag: %s", getTag(), ts0, tag);
+            SqliteMetricsListener metrics = this.metricsListener;
+            if (metrics != null){
+                metrics.onQueryBlock(tag, System.nanoTime() - tsNanos);
+            }
+            if (SqliteLog.isInfo()){
+                long ts0 = System.currentTimeMillis() - ts;
+                Timber.i("db-%s query complete duration: %s ms, tag: %s", getTag(), ts0, tag);
+            }
         }
     }
 
     /**
-     * 关闭
+     * 关闭, 写队列里已接收的任务先提交
      */
-    public synchronized void close(){
-        if (!this.enabled){
-            return;
+    public void close(){
+        SqliteWriteQueue queue;
+        synchronized (this){
+            if (!this.enabled){
+                return;
+            }
+            queue = this.writeQueue;
+        }
+        // 写线程提交事务需要本对象的锁, 在锁外等待写队列提交完
+        if (queue != null){
+            queue.shutdown();
+        }
+        closeDatabase();
+    }
+
+    private synchronized void closeDatabase(){
+        // 已编译的语句必须在连接关闭前释放, 实体缓存随连接失效(切换用户)
+        for (int i = 0; i < mappers.size(); i++) {
+            mappers.get(i).resetStatement();
+            mappers.get(i).clearEntityCache();
+        }
+        changeTracker.reset();
+        SQLiteDatabase[] pool = readers;
+        if (pool != null){
+            readers = null;
+            synchronized (pool){
+                for (int i = 0; i < pool.length; i++) {
+                    if (pool[i] != null){
+                        pool[i].close();
+                        pool[i] = null;
+                    }
+                }
+            }
         }
         if (database != null){
-            Timber.d("db-%s close: %s", getTag(), database.getPath());
+            SqliteLog.d("db-%s close: %s", getTag(), database.getPath());
             database.close();
             SQLiteDatabase.releaseMemory();
             database = null;
@@ -433,13 +807,15 @@ public class SqliteContext {
     /**
      * 重新打开
      */
-    public synchronized void reopen(){
+    public void reopen(){
         if (!this.enabled){
             return;
         }
         close();
-        this.name = this.originalName;
-        ensureDbOpen();
+        synchronized (this){
+            this.name = this.originalName;
+            ensureDbOpen();
+        }
     }
 
     @Override
@@ -0,0 +1,87 @@
+package com.argo.sqlite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 两次查询结果按主键的差异, 见SqliteMapper.diff
+ * 1. removed: 旧列表里被删除的位置(从大到小, 可以依次删除)
+ * 2. inserted: 新列表里新增的位置(从小到大)
+ * 3. moved: 新旧都有但相对顺序变了的记录
+ * 4. changed: 新旧都有且列值不同的记录, mask为不同的列(COL_XXX)
+ */
+public class SqliteDiff<T> {
+
+    /**
+     * 一条差异
+     */
+    public static final class Entry {
+
+        public final int oldPosition;
+        public final int newPosition;
+        public final long mask;
+
+        Entry(int oldPosition, int newPosition, long mask) {
+            this.oldPosition = oldPosition;
+            this.newPosition = newPosition;
+            this.mask = mask;
+        }
+
+        @Override
+        public String toString() {
+            return "{" + oldPosition + " -> " + newPosition + ", mask=" + mask + "}";
+        }
+    }
+
+    private final List<Entry> removed = new ArrayList<Entry>();
+    private final List<Entry> inserted = new ArrayList<Entry>();
+    private final List<Entry> moved = new ArrayList<Entry>();
+    private final List<Entry> changed = new ArrayList<Entry>();
+
+    void addRemoved(int oldPosition){
+        removed.add(new Entry(oldPosition, -1, 0));
+    }
+
+    void addInserted(int newPosition){
+        inserted.add(new Entry(-1, newPosition, 0));
+    }
+
+    void addMoved(int oldPosition, int newPosition){
+        moved.add(new Entry(oldPosition, newPosition, 0));
+    }
+
+    void addChanged(int oldPosition, int newPosition, long mask){
+        changed.add(new Entry(oldPosition, newPosition, mask));
+    }
+
+    public List<Entry> getRemoved() {
+        return removed;
+    }
+
+    public List<Entry> getInserted() {
+        return inserted;
+    }
+
+    public List<Entry> getMoved() {
+        return moved;
+    }
+
+    public List<Entry> getChanged() {
+        return changed;
+    }
+
+    public boolean isEmpty(){
+        return removed.isEmpty() && inserted.isEmpty() && moved.isEmpty() && changed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("SqliteDiff{");
+        sb.append("removed=").append(removed.size());
+        sb.append(", inserted=").append(inserted.size());
+        sb.append(", moved=").append(moved.size());
+        sb.append(", changed=").append(changed.size());
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,32 @@
+package com.argo.sqlite;
+
+import java.util.List;
+
+/**
+ * 重新查询后和上一次结果按主键比较, 只在有差异时回调SqliteDiffObserver.
+ * 比较在通知线程执行, 见SqliteMapper.diff
+ */
+public class SqliteDiffLiveQuery<T> extends SqliteLiveQuery<T> {
+
+    private final SqliteDiffObserver<T> diffObserver;
+    private List<T> previous;
+
+    public SqliteDiffLiveQuery(SqliteMapper<T, ?> mapper, String where, String order, String[] params, long debounceMillis, SqliteDiffObserver<T> diffObserver) {
+        super(mapper, where, order, params, debounceMillis, null);
+        this.diffObserver = diffObserver;
+    }
+
+    @Override
+    protected void deliver(List<T> list) {
+        List<T> old = this.previous;
+        this.previous = list;
+        if (old == null){
+            diffObserver.onChanged(list, null);
+            return;
+        }
+        SqliteDiff<T> diff = mapper.diff(old, list);
+        if (!diff.isEmpty()){
+            diffObserver.onChanged(list, diff);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.argo.sqlite;
+
+import java.util.List;
+
+/**
+ * SqliteMapper.observeDiff的结果, 在通知线程回调
+ */
+public interface SqliteDiffObserver<T> {
+
+    /**
+     *
+     * @param list 重新查询的结果
+     * @param diff 和上一次结果的差异, 第一次查询时为null
+     */
+    void onChanged(List<T> list, SqliteDiff<T> diff);
+}
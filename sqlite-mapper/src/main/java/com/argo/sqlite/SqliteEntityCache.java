@@ -0,0 +1,250 @@
+package com.argo.sqlite;
+
+import android.support.v4.util.LongSparseArray;
+
+/**
+ * 按主键缓存实体(get读穿透), 超过maxEntries或maxWeight时按LRU淘汰.
+ * 主键用LongSparseArray索引(不装箱), 访问顺序用双向链表维护.
+ * SqliteMapper.get返回缓存实例的副本(snapshot), 调用方修改不影响缓存.
+ *
+ * 写操作(save, delete, update)之后删除对应主键, 按where写时清空;
+ * 事务中的删除会在事务结束后再删一次(flushPending), 避免事务期间读到的旧值被放回缓存.
+ * put带上读之前的stamp, 中间有删除时不放入.
+ */
+public class SqliteEntityCache<T> {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    /**
+     * LRU链表节点, head.next是最久未访问的
+     */
+    private static final class Node<T> {
+
+        long key;
+        T value;
+        Node<T> prev;
+        Node<T> next;
+    }
+
+    private final LongSparseArray<Node<T>> entries = new LongSparseArray<Node<T>>();
+    private final Node<T> head = new Node<T>();
+    private final int maxEntries;
+    private final long maxWeight;
+    private long weight = 0;
+
+    private long generation = 0;
+    private LongSparseArray<Boolean> pendingKeys;
+    private boolean pendingAll = false;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long putCount = 0;
+    private long evictionCount = 0;
+
+    public SqliteEntityCache() {
+        this(DEFAULT_MAX_ENTRIES, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxEntries 最多缓存的实体个数
+     * @param maxWeight 最大权重, 每个实体的权重见sizeOf
+     */
+    public SqliteEntityCache(int maxEntries, long maxWeight) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.head.prev = head;
+        this.head.next = head;
+    }
+
+    /**
+     * 实体的权重(如估算的字节数), 默认1
+     * @param value
+     * @return
+     */
+    protected int sizeOf(T value) {
+        return 1;
+    }
+
+    public synchronized T get(long key) {
+        Node<T> node = entries.get(key);
+        if (node == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        unlink(node);
+        linkLast(node);
+        return node.value;
+    }
+
+    /**
+     * 读数据库之前调用, 传给put
+     * @return
+     */
+    public synchronized long stamp() {
+        return generation;
+    }
+
+    /**
+     * 放入从数据库读到的实体
+     * @param key
+     * @param value
+     * @param stamp 读之前的stamp(), 期间有删除时不放入
+     * @return 是否放入
+     */
+    public synchronized boolean put(long key, T value, long stamp) {
+        if (value == null || stamp != generation) {
+            return false;
+        }
+        Node<T> node = entries.get(key);
+        if (node != null) {
+            weight -= sizeOf(node.value);
+            unlink(node);
+        } else {
+            node = new Node<T>();
+            node.key = key;
+            entries.put(key, node);
+        }
+        node.value = value;
+        linkLast(node);
+        weight += sizeOf(value);
+        putCount++;
+        trim();
+        return true;
+    }
+
+    private void trim() {
+        while ((entries.size() > maxEntries || weight > maxWeight) && head.next != head) {
+            Node<T> eldest = head.next;
+            unlink(eldest);
+            entries.remove(eldest.key);
+            weight -= sizeOf(eldest.value);
+            evictionCount++;
+        }
+    }
+
+    private void linkLast(Node<T> node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    private void unlink(Node<T> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    /**
+     * 删除主键
+     * @param key
+     * @param deferred 在事务中, 事务结束后(flushPending)再删一次
+     */
+    public synchronized void remove(long key, boolean deferred) {
+        generation++;
+        Node<T> node = entries.get(key);
+        if (node != null) {
+            entries.remove(key);
+            unlink(node);
+            weight -= sizeOf(node.value);
+        }
+        if (deferred && !pendingAll) {
+            if (pendingKeys == null) {
+                pendingKeys = new LongSparseArray<Boolean>();
+            }
+            pendingKeys.put(key, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * 清空
+     * @param deferred 在事务中, 事务结束后(flushPending)再清空一次
+     */
+    public synchronized void clear(boolean deferred) {
+        generation++;
+        entries.clear();
+        head.prev = head;
+        head.next = head;
+        weight = 0;
+        if (deferred) {
+            pendingAll = true;
+            pendingKeys = null;
+        }
+    }
+
+    /**
+     * 事务结束后调用
+     */
+    public synchronized void flushPending() {
+        if (pendingAll) {
+            pendingAll = false;
+            clear(false);
+            return;
+        }
+        LongSparseArray<Boolean> keys = pendingKeys;
+        if (keys == null) {
+            return;
+        }
+        pendingKeys = null;
+        for (int i = 0; i < keys.size(); i++) {
+            remove(keys.keyAt(i), false);
+        }
+    }
+
+    /**
+     * 清空缓存和待删除的主键, 数据库关闭或切换用户时调用
+     */
+    public synchronized void evictAll() {
+        pendingAll = false;
+        pendingKeys = null;
+        clear(false);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getPutCount() {
+        return putCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * 命中率
+     * @return 0 ~ 1
+     */
+    public synchronized float getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0f : (float) hitCount / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("SqliteEntityCache{");
+        sb.append("size=").append(entries.size());
+        sb.append(", weight=").append(weight);
+        sb.append(", hits=").append(hitCount);
+        sb.append(", misses=").append(missCount);
+        sb.append(", puts=").append(putCount);
+        sb.append(", evictions=").append(evictionCount);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,102 @@
+package com.argo.sqlite;
+
+/**
+ * 耗时直方图(纳秒). 对数-线性分桶: 每个2的幂区间再分成8个子桶, 相对误差不超过12.5%,
+ * 记录不分配对象, 内存固定
+ */
+public class SqliteHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long total;
+    private long max;
+
+    public synchronized void record(long value){
+        if (value < 0){
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        count++;
+        total += value;
+        if (value > max){
+            max = value;
+        }
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return 对应分位所在桶的上界, 不超过max
+     */
+    public synchronized long percentile(double percentile){
+        if (count == 0){
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        rank = Math.max(1, rank);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank){
+                return Math.min(max, upperBoundOf(i));
+            }
+        }
+        return max;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMean() {
+        return count == 0 ? 0 : total / count;
+    }
+
+    public synchronized void reset(){
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+
+    static int indexOf(long value){
+        if (value < SUB_BUCKETS){
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> exp) & (SUB_BUCKETS - 1);
+        return (exp + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int index){
+        if (index < SUB_BUCKETS){
+            return index;
+        }
+        int exp = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << exp;
+        return lower + (1L << exp) - 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("SqliteHistogram{");
+        sb.append("count=").append(count);
+        sb.append(", mean=").append(getMean() / 1000).append("us");
+        sb.append(", p50=").append(percentile(50) / 1000).append("us");
+        sb.append(", p95=").append(percentile(95) / 1000).append("us");
+        sb.append(", p99=").append(percentile(99) / 1000).append("us");
+        sb.append(", max=").append(max / 1000).append("us");
+        sb.append('}');
+        return sb.toString();
+    }
+}
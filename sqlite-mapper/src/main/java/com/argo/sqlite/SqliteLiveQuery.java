@@ -0,0 +1,128 @@
+package com.argo.sqlite;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import timber.log.Timber;
+
+/**
+ * 观察的表提交变化后重新执行select(where, order, params), 在通知线程回调结果.
+ * debounceMillis内的多次变化合并成一次查询.
+ * 见SqliteMapper.observe
+ */
+public class SqliteLiveQuery<T> implements SqliteTableObserver {
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 50;
+
+    protected final SqliteMapper<T, ?> mapper;
+    protected final String where;
+    protected final String order;
+    protected final String[] params;
+    protected final long debounceMillis;
+    protected final SqliteQueryObserver<T> observer;
+    protected final Set<String> tables = new HashSet<String>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean active = false;
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            scheduled.set(false);
+            if (!active){
+                return;
+            }
+            try {
+                List<T> list = mapper.select(where, order, params);
+                if (active){
+                    deliver(list);
+                }
+            } catch (Exception e) {
+                Timber.e(e, "live query error. table: %s, where: %s", mapper.getTableName(), where);
+            }
+        }
+    };
+
+    public SqliteLiveQuery(SqliteMapper<T, ?> mapper, String where, String order, String[] params, long debounceMillis, SqliteQueryObserver<T> observer) {
+        this.mapper = mapper;
+        this.where = where;
+        this.order = order;
+        this.params = params;
+        this.debounceMillis = debounceMillis;
+        this.observer = observer;
+        this.tables.add(mapper.getTableName());
+    }
+
+    /**
+     * 同时观察其他表(如关联实体的表), 需要在start之前调用
+     * @param table
+     * @return
+     */
+    public SqliteLiveQuery<T> watch(String table){
+        this.tables.add(table);
+        return this;
+    }
+
+    public Set<String> getTables() {
+        return Collections.unmodifiableSet(tables);
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * 开始观察, 并立即查询一次
+     */
+    public void start(){
+        if (active){
+            return;
+        }
+        active = true;
+        tracker().addObserver(this, tables);
+        schedule(0);
+    }
+
+    /**
+     * 停止观察
+     */
+    public void stop(){
+        active = false;
+        tracker().removeObserver(this);
+    }
+
+    @Override
+    public void onTablesChanged(Set<String> tables) {
+        schedule(debounceMillis);
+    }
+
+    private void schedule(long delayMillis){
+        if (!active || !scheduled.compareAndSet(false, true)){
+            return;
+        }
+        try {
+            tracker().getExecutor().schedule(refresh, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false);
+            Timber.w("live query rejected. table: %s", mapper.getTableName());
+        }
+    }
+
+    /**
+     * 把查询结果交给observer
+     * @param list
+     */
+    protected void deliver(List<T> list){
+        observer.onChanged(list);
+    }
+
+    private SqliteChangeTracker tracker(){
+        mapper.ensureContext();
+        return mapper.dbContext.getChangeTracker();
+    }
+}
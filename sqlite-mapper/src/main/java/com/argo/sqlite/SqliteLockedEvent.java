@@ -6,12 +6,48 @@ package com.argo.sqlite;
 public class SqliteLockedEvent {
 
     private String tag;
+    private int attempt;
+    private long backoffMillis;
+    private long waitMillis;
+    private boolean retry;
 
     public SqliteLockedEvent(String tag) {
         this.tag = tag;
     }
 
+    /**
+     *
+     * @param tag
+     * @param attempt 第几次遇到锁, 从1开始
+     * @param backoffMillis 本次重试前的等待时间
+     * @param waitMillis 本次update累计的等待时间(不含本次)
+     * @param retry 是否会重试
+     */
+    public SqliteLockedEvent(String tag, int attempt, long backoffMillis, long waitMillis, boolean retry) {
+        this.tag = tag;
+        this.attempt = attempt;
+        this.backoffMillis = backoffMillis;
+        this.waitMillis = waitMillis;
+        this.retry = retry;
+    }
+
     public String getTag() {
         return tag;
     }
+
+    public int getAttempt() {
+        return attempt;
+    }
+
+    public long getBackoffMillis() {
+        return backoffMillis;
+    }
+
+    public long getWaitMillis() {
+        return waitMillis;
+    }
+
+    public boolean isRetry() {
+        return retry;
+    }
 }
@@ -0,0 +1,13 @@
+package com.argo.sqlite;
+
+/**
+ * 数据库被锁时的通知
+ */
+public interface SqliteLockedListener {
+
+    /**
+     *
+     * @param event
+     */
+    void onLocked(SqliteLockedEvent event);
+}
@@ -0,0 +1,73 @@
+package com.argo.sqlite;
+
+import android.util.Log;
+
+import timber.log.Timber;
+
+/**
+ * 按级别开关的日志, 默认只输出WARN以上.
+ * 关闭时不格式化, 不创建参数数组; 参数含基本类型(会装箱)时调用方先判断isDebug()/isInfo()
+ * 调试时: SqliteLog.setLevel(Log.DEBUG)
+ */
+public final class SqliteLog {
+
+    private static volatile int level = Log.WARN;
+
+    private SqliteLog() {
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * @param level android.util.Log.VERBOSE ~ Log.ASSERT
+     */
+    public static void setLevel(int level) {
+        SqliteLog.level = level;
+    }
+
+    public static boolean isDebug(){
+        return level <= Log.DEBUG;
+    }
+
+    public static boolean isInfo(){
+        return level <= Log.INFO;
+    }
+
+    public static void d(String message){
+        if (level <= Log.DEBUG){
+            Timber.d(message);
+        }
+    }
+
+    public static void d(String format, Object arg0){
+        if (level <= Log.DEBUG){
+            Timber.d(format, arg0);
+        }
+    }
+
+    public static void d(String format, Object arg0, Object arg1){
+        if (level <= Log.DEBUG){
+            Timber.d(format, arg0, arg1);
+        }
+    }
+
+    public static void d(String format, Object arg0, Object arg1, Object arg2){
+        if (level <= Log.DEBUG){
+            Timber.d(format, arg0, arg1, arg2);
+        }
+    }
+
+    public static void i(String format, Object arg0, Object arg1){
+        if (level <= Log.INFO){
+            Timber.i(format, arg0, arg1);
+        }
+    }
+
+    public static void i(String format, Object arg0, Object arg1, Object arg2){
+        if (level <= Log.INFO){
+            Timber.i(format, arg0, arg1, arg2);
+        }
+    }
+}
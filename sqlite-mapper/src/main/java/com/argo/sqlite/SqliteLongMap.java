@@ -0,0 +1,94 @@
+package com.argo.sqlite;
+
+/**
+ * long主键到实体的哈希表(开放寻址, 线性探测), 键不装箱.
+ * 生成的wrapRef按关联实体主键建索引时使用, 不支持删除, 值不能为null
+ */
+public final class SqliteLongMap<T> {
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * @param expectedSize 预计的元素个数, 装载因子不超过0.5
+     */
+    public SqliteLongMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) - 1) << 2;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * 放入, 已有时替换
+     * @param key
+     * @param value 不能为null
+     */
+    public void put(long key, T value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value is null");
+        }
+        if ((size + 1) * 2 > values.length) {
+            resize();
+        }
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    /**
+     * @param key
+     * @return null 不存在
+     */
+    @SuppressWarnings("unchecked")
+    public T get(long key) {
+        int i = hash(key) & mask;
+        Object value;
+        while ((value = values[i]) != null) {
+            if (keys[i] == key) {
+                return (T) value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        int capacity = oldValues.length * 2;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            Object value = oldValues[j];
+            if (value != null) {
+                int i = hash(oldKeys[j]) & mask;
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = value;
+            }
+        }
+    }
+}
@@ -1,13 +1,25 @@
 package com.argo.sqlite;
 
+import android.support.v4.util.ArrayMap;
+import android.support.v4.util.LongSparseArray;
+
+import net.sqlcipher.AbstractWindowedCursor;
 import net.sqlcipher.Cursor;
+import net.sqlcipher.CursorWindow;
+import net.sqlcipher.CursorWrapper;
+import net.sqlcipher.database.SQLiteCursor;
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDoneException;
+import net.sqlcipher.database.SQLiteProgram;
 import net.sqlcipher.database.SQLiteStatement;
 import net.sqlcipher.database.SQLiteStatementBinder;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -30,22 +42,109 @@ public abstract class SqliteMapper<T, PKType> {
     public static final String ORDER_BY = " order by ";
     public static final String WHERE = " where ";
     public static final String LIMIT_OFFSET = " limit ? offset ?";
+    public static final String LIMIT = " limit ?";
+    public static final String S_LT = " < ? ";
+    public static final String S_GT = " > ? ";
+    public static final String ASC = " asc ";
     public static final String DELETE_FROM = "delete from ";
     public static final String UPDATE = "update ";
     public static final String SET = " set ";
     public static final String S_EMPTY = " ";
     public static final String STRING_NULL = "";
     public static final String DESC = " desc ";
+    public static final String IN = " in (";
+
+    /**
+     * 按主键批量读取时IN列表的占位符个数, 不足时用最后一个主键补齐,
+     * 这样每个大小只对应一条SQL, 可命中SQLiteDatabase的编译缓存
+     */
+    public static final int[] IN_BUCKETS = {1, 8, 32, 128};
+
+    /**
+     * wrapRef默认读取关联实体的层数. 同一次wrapRef内每行只读取一次(见SqliteRefSession),
+     * 层数限制读取的范围, 自关联(如subCities)时避免读出整棵树
+     */
+    public static final int DEFAULT_WRAP_REF_DEPTH = 2;
+
+    /**
+     * 批量保存时每条REPLACE语句最多的参数个数(SQLITE_MAX_VARIABLE_NUMBER)
+     */
+    public static final int MAX_BIND_ARGS = 999;
+
+    /**
+     * 批量保存时每条REPLACE语句最多的行数
+     */
+    public static final int MAX_BATCH_ROWS = 128;
+
+    /**
+     * update时更新所有列
+     */
+    public static final long ALL_COLUMNS = -1L;
+
+    /**
+     * SqliteStatementCache中的操作类型
+     */
+    protected static final int OP_COUNT = 1;
+    protected static final int OP_COUNT_GROUP = 2;
+    protected static final int OP_MAX = 3;
+    protected static final int OP_MIN = 4;
+    protected static final int OP_SUM = 5;
+    protected static final int OP_SUM_GROUP = 6;
+    protected static final int OP_DELETE = 7;
+    protected static final int OP_UPDATE = 8;
+    protected static final int OP_SELECT = 9;
+    protected static final int OP_SELECT_LIMIT = 10;
+    protected static final int OP_SELECT_PK_DESC = 11;
+    protected static final int OP_SELECT_PAGE_FIRST = 12;
+    protected static final int OP_SELECT_PAGE = 13;
 
     protected SqliteContext dbContext;
 
     protected String SELECT_FIELDS;
     protected String getStatement;
+    protected String[] getsStatements;
 
     protected SQLiteStatement insertStatement;
     protected SQLiteStatementBinder insertStatementBinder;
+    /**
+     * 多行REPLACE语句, 下标i对应2^i行
+     */
+    protected SQLiteStatement[] batchInsertStatements;
+    protected int batchInsertRows = 0;
+    protected int batchInsertColumns = 0;
 
     protected SQLiteStatement deleteStatement;
+    /**
+     * 按主键批量删除的语句, 下标对应IN_BUCKETS
+     */
+    protected SQLiteStatement[] deleteInStatements;
+    protected SQLiteStatement insertOnlyStatement;
+    /**
+     * UPDATE语句, key是列的mask
+     */
+    protected LongSparseArray<SQLiteStatement> updateStatements;
+
+    protected final SqliteStatementCache statementCache = new SqliteStatementCache();
+
+    protected int wrapRefDepth = DEFAULT_WRAP_REF_DEPTH;
+
+    protected long pageTotalCacheMillis = 0;
+    protected Map<String, long[]> pageTotals;
+
+    /**
+     * 按主键的实体缓存, null为不缓存, 见enableEntityCache
+     */
+    protected volatile SqliteEntityCache<T> entityCache;
+
+    /**
+     * 按主键读取时复用的参数, 与SqliteBindArgs.obtain()分开, 不会清掉调用方正在使用的参数
+     */
+    private static final ThreadLocal<SqliteBindArgs> PK_ARGS = new ThreadLocal<SqliteBindArgs>(){
+        @Override
+        protected SqliteBindArgs initialValue() {
+            return new SqliteBindArgs(IN_BUCKETS[IN_BUCKETS.length - 1]);
+        }
+    };
 
     /**
      *
@@ -67,33 +166,139 @@ public abstract class SqliteMapper<T, PKType> {
      */
     protected List<T> loadRecords(Cursor cursor){
         List<T> list = new ArrayList<T>();
-        if (cursor.getCount() == 0){
+        try {
+            fillRecords(cursor, list, false);
+        } catch (Exception e) {
+            Timber.e(e, "mapping record error. %s" + this.getClass());
+            return Collections.emptyList();
+        } finally {
+            cursor.close();
+        }
+        return list;
+    }
+
+    /**
+     * 遍历所有的记录, 按位置复用recycle中的实体对象, 多余的会被移除
+     * @param cursor
+     * @param recycle
+     * @return recycle
+     */
+    protected List<T> loadRecords(Cursor cursor, List<T> recycle){
+        int position = 0;
+        try {
+            position = fillRecords(cursor, recycle, true);
+        } catch (Exception e) {
+            Timber.e(e, "mapping record error. %s", this.getClass());
+            position = 0;
+        } finally {
             cursor.close();
-            return list;
         }
 
-        if (cursor.isBeforeFirst()){
-            cursor.moveToFirst();
+        for (int i = recycle.size() - 1; i >= position; i--) {
+            recycle.remove(i);
         }
+        return recycle;
+    }
 
-        while (true){
-            T item = null;
-            try {
-                item = this.map(cursor, item);
-            } catch (Exception e) {
-                Timber.e(e, "mapping record error. %s" + this.getClass());
-                cursor.close();
-                return Collections.emptyList();
+    /**
+     * 把记录映射到list, 窗口游标按CursorWindow整块读取(mapRow), 跳过Cursor每列的位置检查和引用计数
+     * @param cursor
+     * @param list
+     * @param reuse 是否按位置复用list中的实体
+     * @return 映射的记录数
+     */
+    protected int fillRecords(Cursor cursor, List<T> list, boolean reuse){
+        Cursor target = usePooledWindow(cursor);
+
+        int position = 0;
+        if (target instanceof AbstractWindowedCursor){
+            AbstractWindowedCursor windowed = (AbstractWindowedCursor) target;
+            while (windowed.moveToPosition(position)){
+                CursorWindow window = windowed.getWindow();
+                CursorWindow.RowBlock block = window.openBlock();
+                try {
+                    int end = block.getEndPosition();
+                    if (end <= position){
+                        // 窗口没有包含当前行, 按Cursor读取
+                        setRecord(list, position, this.map(windowed, reuse ? recordAt(list, position) : null));
+                        position++;
+                        continue;
+                    }
+                    for (; position < end; position++) {
+                        setRecord(list, position, this.mapRow(block, position, reuse ? recordAt(list, position) : null));
+                    }
+                } finally {
+                    block.close();
+                }
             }
+            return position;
+        }
+
+        while (cursor.moveToNext()){
+            setRecord(list, position, this.map(cursor, reuse ? recordAt(list, position) : null));
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * 结果读完即关闭的游标, 从CursorWindowPool取窗口, 关闭时放回
+     * @param cursor
+     * @return rawQuery包装的原始游标
+     */
+    protected Cursor usePooledWindow(Cursor cursor){
+        Cursor target = cursor;
+        if (target instanceof CursorWrapper){
+            target = ((CursorWrapper) target).getWrappedCursor();
+        }
+        if (target instanceof SQLiteCursor){
+            ((SQLiteCursor) target).setUsePooledWindow(true);
+        }
+        return target;
+    }
+
+    private T recordAt(List<T> list, int position){
+        return position < list.size() ? list.get(position) : null;
+    }
+
+    private void setRecord(List<T> list, int position, T item){
+        if (position < list.size()){
+            list.set(position, item);
+        }else{
             list.add(item);
-            //Timber.d("loadRecords, " + item);
-            if(!cursor.moveToNext()){
-                break;
-            }
         }
+    }
 
-        cursor.close();
-        return list;
+    /**
+     * 逐行映射并回调, 不生成列表. 无论是否提前结束都会关闭cursor.
+     * 映射失败时记录日志并停止; visitor抛出的异常直接抛给调用方
+     * @param cursor
+     * @param reuse 是否复用同一个实体对象
+     * @param visitor
+     * @return 遍历的记录数
+     */
+    protected int iterateRecords(Cursor cursor, boolean reuse, SqliteRowVisitor<T> visitor){
+        usePooledWindow(cursor);
+        int position = 0;
+        try {
+            T item = null;
+            while (cursor.moveToNext()){
+                try {
+                    item = this.map(cursor, reuse ? item : null);
+                } catch (Exception e) {
+                    Timber.e(e, "iterate record error. %s", this.getClass());
+                    break;
+                }
+                boolean next = visitor.visit(item, position);
+                position++;
+                if (!next){
+                    break;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return position;
     }
 
     protected void ensureContext(){
@@ -102,9 +307,284 @@ public abstract class SqliteMapper<T, PKType> {
         }
     }
 
+    public int getWrapRefDepth() {
+        return wrapRefDepth;
+    }
+
+    /**
+     * 设置wrapRef读取关联实体的层数
+     * @param wrapRefDepth
+     */
+    public void setWrapRefDepth(int wrapRefDepth) {
+        this.wrapRefDepth = wrapRefDepth;
+    }
+
+    /**
+     * selectPage中total的缓存时间, 0表示每次都重新计算
+     * @param pageTotalCacheMillis
+     */
+    public void setPageTotalCacheMillis(long pageTotalCacheMillis) {
+        this.pageTotalCacheMillis = pageTotalCacheMillis;
+    }
+
+    /**
+     * 开启按主键的实体缓存(get读穿透)
+     * @param maxEntries 最多缓存的实体个数
+     */
+    public void enableEntityCache(int maxEntries){
+        setEntityCache(new SqliteEntityCache<T>(maxEntries, Long.MAX_VALUE));
+    }
+
+    /**
+     * 设置实体缓存, 可以覆盖SqliteEntityCache.sizeOf按权重淘汰. null为关闭
+     * @param entityCache
+     */
+    public void setEntityCache(SqliteEntityCache<T> entityCache) {
+        this.entityCache = entityCache;
+    }
+
+    /**
+     * 实体缓存, 可读取命中率等统计
+     * @return null 未开启
+     */
+    public SqliteEntityCache<T> getEntityCache() {
+        return entityCache;
+    }
+
+    /**
+     * 清空实体缓存, 数据库关闭或切换用户时调用
+     */
+    public void clearEntityCache(){
+        SqliteEntityCache<T> cache = this.entityCache;
+        if (cache != null){
+            cache.evictAll();
+        }
+    }
+
+    /**
+     * 事务结束后调用, 再删一次事务中写过的主键
+     */
+    public void onTransactionEnd(){
+        SqliteEntityCache<T> cache = this.entityCache;
+        if (cache != null){
+            cache.flushPending();
+        }
+    }
+
+    /**
+     * 写之后删除缓存的实体
+     * @param pkValue
+     */
+    protected void evictCache(Object pkValue){
+        SqliteEntityCache<T> cache = this.entityCache;
+        if (cache != null && pkValue instanceof Number){
+            cache.remove(((Number) pkValue).longValue(), this.getDatabase().inTransaction());
+        }
+    }
+
+    /**
+     * 按where写之后清空缓存
+     */
+    protected void evictCacheAll(){
+        SqliteEntityCache<T> cache = this.entityCache;
+        if (cache != null){
+            cache.clear(this.getDatabase().inTransaction());
+        }
+        this.clearPageTotals();
+    }
+
+    /**
+     * 写之后清除selectPage缓存的总数
+     */
+    protected synchronized void clearPageTotals(){
+        if (pageTotals != null){
+            pageTotals.clear();
+        }
+    }
+
+    /**
+     * 写之后记录表的变化, 事务提交后(不在事务中时立即)通知观察者
+     * @param recs 影响的行数, 0时不通知
+     */
+    protected void notifyChanged(int recs){
+        if (recs > 0 && pageTotalCacheMillis > 0){
+            this.clearPageTotals();
+        }
+        SqliteChangeTracker tracker = this.dbContext.getChangeTracker();
+        if (recs > 0 && tracker.hasObservers()){
+            tracker.markChanged(this.getTableName(), this.getDatabase().inTransaction());
+        }
+    }
+
+    /**
+     * 观察select(where, order, params)的结果, 表提交变化后重新查询
+     * @param where
+     * @param order
+     * @param params
+     * @param debounceMillis 合并这段时间内的变化
+     * @param observer 在通知线程回调
+     * @return 已开始的查询, 不用时调用stop
+     */
+    public SqliteLiveQuery<T> observe(String where, String order, String[] params, long debounceMillis, SqliteQueryObserver<T> observer){
+        SqliteLiveQuery<T> query = new SqliteLiveQuery<T>(this, where, order, params, debounceMillis, observer);
+        query.start();
+        return query;
+    }
+
+    /**
+     * 同observe, 只回调和上一次结果的差异
+     * @param where
+     * @param order
+     * @param params
+     * @param debounceMillis 合并这段时间内的变化
+     * @param observer 在通知线程回调
+     * @return 已开始的查询, 不用时调用stop
+     */
+    public SqliteLiveQuery<T> observeDiff(String where, String order, String[] params, long debounceMillis, SqliteDiffObserver<T> observer){
+        SqliteLiveQuery<T> query = new SqliteDiffLiveQuery<T>(this, where, order, params, debounceMillis, observer);
+        query.start();
+        return query;
+    }
+
+    /**
+     * 按主键比较两次查询的结果, 列值的比较用dirtyMask.
+     * 主键用HashMap定位, O(n); 相对顺序不变时没有移动, 否则移动的记录为最长递增子序列之外的记录
+     * @param oldList
+     * @param newList
+     * @return
+     */
+    public SqliteDiff<T> diff(List<T> oldList, List<T> newList){
+        SqliteDiff<T> diff = new SqliteDiff<T>();
+        final int oldSize = oldList == null ? 0 : oldList.size();
+        final int newSize = newList == null ? 0 : newList.size();
+
+        Map<Object, Integer> oldPositions = new HashMap<Object, Integer>(oldSize * 2);
+        for (int i = 0; i < oldSize; i++) {
+            oldPositions.put(getPkValue(oldList.get(i)), i);
+        }
+
+        boolean[] kept = new boolean[oldSize];
+        int[] keptOld = new int[newSize];
+        int[] keptNew = new int[newSize];
+        int size = 0;
+        boolean ordered = true;
+        for (int j = 0; j < newSize; j++) {
+            T o = newList.get(j);
+            Integer i = oldPositions.get(getPkValue(o));
+            if (i == null){
+                diff.addInserted(j);
+                continue;
+            }
+            kept[i] = true;
+            if (size > 0 && keptOld[size - 1] > i){
+                ordered = false;
+            }
+            keptOld[size] = i;
+            keptNew[size] = j;
+            size++;
+            long mask = dirtyMask(o, oldList.get(i));
+            if (mask != 0){
+                diff.addChanged(i, j, mask);
+            }
+        }
+
+        for (int i = oldSize - 1; i >= 0; i--) {
+            if (!kept[i]){
+                diff.addRemoved(i);
+            }
+        }
+
+        if (!ordered){
+            boolean[] stay = longestIncreasing(keptOld, size);
+            for (int m = 0; m < size; m++) {
+                if (!stay[m]){
+                    diff.addMoved(keptOld[m], keptNew[m]);
+                }
+            }
+        }
+
+        return diff;
+    }
+
+    /**
+     * values[0, size)中属于最长递增子序列的位置
+     */
+    private static boolean[] longestIncreasing(int[] values, int size){
+        int[] tails = new int[size];
+        int[] prev = new int[size];
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            int lo = 0;
+            int hi = length;
+            while (lo < hi){
+                int mid = (lo + hi) >>> 1;
+                if (values[tails[mid]] < values[i]){
+                    lo = mid + 1;
+                }else{
+                    hi = mid;
+                }
+            }
+            prev[i] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = i;
+            if (lo == length){
+                length++;
+            }
+        }
+
+        boolean[] stay = new boolean[size];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = prev[i]) {
+            stay[i] = true;
+        }
+        return stay;
+    }
+
+    /**
+     * 读取实体的主键
+     * @param o
+     * @return
+     */
+    public abstract PKType getPkValue(T o);
+
+    /**
+     * 关闭并清除已编译的语句, 数据库关闭或重新打开前调用
+     */
     public void resetStatement(){
+        closeStatement(this.deleteStatement);
+        closeStatement(this.insertStatement);
+        closeStatement(this.insertOnlyStatement);
+        SQLiteStatement[] statements = this.batchInsertStatements;
+        if (statements != null){
+            for (int i = 1; i < statements.length; i++) {
+                closeStatement(statements[i]);
+            }
+        }
+        statements = this.deleteInStatements;
+        if (statements != null){
+            for (int i = 0; i < statements.length; i++) {
+                closeStatement(statements[i]);
+            }
+        }
+        LongSparseArray<SQLiteStatement> updates = this.updateStatements;
+        if (updates != null){
+            for (int i = 0; i < updates.size(); i++) {
+                closeStatement(updates.valueAt(i));
+            }
+        }
         this.deleteStatement = null;
+        this.deleteInStatements = null;
         this.insertStatement = null;
+        this.batchInsertStatements = null;
+        this.insertOnlyStatement = null;
+        this.updateStatements = null;
+        this.statementCache.clear();
+    }
+
+    private static void closeStatement(SQLiteStatement statement){
+        if (statement != null){
+            synchronized (statement){
+                statement.close();
+            }
+        }
     }
 
     /**
@@ -116,6 +596,15 @@ public abstract class SqliteMapper<T, PKType> {
         return this.dbContext.getDatabase();
     }
 
+    /**
+     * 获取读操作使用的数据库连接(WAL模式下为只读连接池中的连接)
+     * @return
+     */
+    public SQLiteDatabase getReadDatabase(){
+        this.ensureContext();
+        return this.dbContext.getReadDatabase();
+    }
+
     /**
      * 准备好数据库和关联的Mapper
      */
@@ -164,6 +653,12 @@ public abstract class SqliteMapper<T, PKType> {
      * @return String
      */
     public abstract String getTableCreateSql();
+
+    /**
+     * 索引名 -> create index语句
+     * @return Map
+     */
+    public abstract Map<String, String> getIndexSql();
     /**
      * 构造select字段
      * @return
@@ -194,26 +689,135 @@ public abstract class SqliteMapper<T, PKType> {
             return;
         }
 
-        StringBuilder s = new StringBuilder("REPLACE into ");
+        String sql = buildInsertSql(1);
+        SqliteLog.d("save sql: %s", sql);
+
+        SQLiteDatabase database = this.getDatabase();
+        insertStatement = database.compileStatement(sql);
+    }
+
+    /**
+     * REPLACE into t(c1, c2)values(?, ?),(?, ?)...
+     * @param rows 行数
+     * @return
+     */
+    protected String buildInsertSql(int rows){
+        return buildInsertSql("REPLACE into ", rows);
+    }
+
+    protected String buildInsertSql(String verb, int rows){
+        StringBuilder s = new StringBuilder(verb);
         s.append(this.getTableName()).append("(");
         List<String> columns = this.getColumns();
         for (int i = 0; i < columns.size(); i++) {
             s.append(columns.get(i)).append(S_COMMOA);
         }
         s.setLength(s.length() - S_COMMOA.length());
-        s.append(")values(");
-        for (int i = 0; i < columns.size(); i++) {
-            s.append(S_QMARK);
+        s.append(")values");
+        for (int r = 0; r < rows; r++) {
+            s.append("(");
+            for (int i = 0; i < columns.size(); i++) {
+                s.append(S_QMARK);
+            }
+            s.setLength(s.length() - 2);
+            s.append("),");
         }
-        s.setLength(s.length() - 2);
-        s.append(")");
+        s.setLength(s.length() - 1);
+        columns.clear();
+        return s.toString();
+    }
 
-        Timber.d("save sql: %s", s.toString());
+    /**
+     * 按列数计算多行REPLACE的行数(2的幂, 参数个数不超过MAX_BIND_ARGS)
+     */
+    protected synchronized void compileBatchInsertStatements(){
+        if (batchInsertStatements != null){
+            return;
+        }
+        List<String> columns = this.getColumns();
+        int columnCount = columns.size();
+        int rows = 1;
+        while (rows * 2 <= MAX_BATCH_ROWS && rows * 2 * columnCount <= MAX_BIND_ARGS){
+            rows *= 2;
+        }
+        batchInsertColumns = columnCount;
+        batchInsertRows = rows;
+        batchInsertStatements = new SQLiteStatement[Integer.numberOfTrailingZeros(rows) + 1];
+    }
 
-        SQLiteDatabase database = this.getDatabase();
-        insertStatement = database.compileStatement(s.toString());
-        columns.clear();
-        s = null;
+    /**
+     * 2^level行的REPLACE语句, 第一次使用时编译
+     * @param statements
+     * @param level
+     * @return
+     */
+    protected synchronized SQLiteStatement getBatchInsertStatement(SQLiteStatement[] statements, int level){
+        if (level == 0){
+            if (insertStatement == null){
+                this.compileInsertStatement();
+            }
+            return insertStatement;
+        }
+        SQLiteStatement statement = statements[level];
+        if (statement == null){
+            String sql = buildInsertSql(1 << level);
+            if (SqliteLog.isDebug()){
+                Timber.d("save batch sql: %s rows", 1 << level);
+            }
+            statement = this.getDatabase().compileStatement(sql);
+            statements[level] = statement;
+        }
+        return statement;
+    }
+
+    /**
+     * 多行REPLACE保存, 每batchInsertRows行执行一次, 剩余的按2的幂拆分
+     * @param iterator
+     * @return 影响的行数
+     */
+    protected int saveBatch(Iterator<T> iterator){
+        if (batchInsertStatements == null){
+            this.compileBatchInsertStatements();
+        }
+        final SQLiteStatement[] statements = batchInsertStatements;
+        final int rows = batchInsertRows;
+        final int maxLevel = statements.length - 1;
+
+        List<T> chunk = new ArrayList<T>(rows);
+        int total = 0;
+        while (iterator.hasNext()){
+            T o = iterator.next();
+            if (o == null){
+                continue;
+            }
+            chunk.add(o);
+            this.evictCache(getPkValue(o));
+            if (chunk.size() == rows){
+                total += executeBatchInsert(statements, chunk, 0, maxLevel);
+                chunk.clear();
+            }
+        }
+
+        int from = 0;
+        for (int level = maxLevel; level >= 0 && from < chunk.size(); level--) {
+            if (chunk.size() - from >= (1 << level)){
+                total += executeBatchInsert(statements, chunk, from, level);
+                from += 1 << level;
+            }
+        }
+        this.notifyChanged(total);
+        return total;
+    }
+
+    private int executeBatchInsert(SQLiteStatement[] statements, List<T> chunk, int from, int level){
+        SQLiteStatement statement = getBatchInsertStatement(statements, level);
+        final int rows = 1 << level;
+        synchronized (statement){
+            for (int i = 0; i < rows; i++) {
+                bindInsertStatement(statement, chunk.get(from + i), i * batchInsertColumns);
+            }
+            return statement.executeUpdateDelete();
+        }
     }
 
     /**
@@ -255,42 +859,114 @@ public abstract class SqliteMapper<T, PKType> {
     }
 
     /**
-     *
-     * @param date
+     * 读取日期, reuse不为空时直接修改reuse, 避免重复创建Date
+     * @param cursor
+     * @param index
+     * @param reuse
      * @return
      */
-    protected long getDate(Date date){
-        if (date == null){
-            return 0;
+    protected Date getDate(CursorWindow.RowBlock block, int row, int index, Date reuse){
+        long ts = block.getLong(row, index);
+        if (ts == 0){
+            return null;
         }
-        return date.getTime() / 1000;
+        if (reuse == null){
+            return new Date(ts * 1000);
+        }
+        reuse.setTime(ts * 1000);
+        return reuse;
     }
 
-    protected int getBoolean(boolean val){
-        return val ? 1 : 0;
+    protected Boolean getBoolean(CursorWindow.RowBlock block, int row, int index){
+        return block.getLong(row, index) == 1;
     }
 
-    protected String filterNull(String val){
-        if (val == null){
-            return STRING_NULL;
+    protected Date getDate(Cursor cursor, int index, Date reuse){
+        long ts = cursor.getLong(index);
+        if (ts == 0){
+            return null;
+        }
+        if (reuse == null){
+            return new Date(ts * 1000);
+        }
+        reuse.setTime(ts * 1000);
+        return reuse;
+    }
+
+    /**
+     *
+     * @param date
+     * @return
+     */
+    protected long getDate(Date date){
+        if (date == null){
+            return 0;
+        }
+        return date.getTime() / 1000;
+    }
+
+    protected int getBoolean(boolean val){
+        return val ? 1 : 0;
+    }
+
+    protected String filterNull(String val){
+        if (val == null){
+            return STRING_NULL;
         }
         return val;
     }
 
+    protected static boolean isEqual(Object a, Object b){
+        return a == b || (a != null && a.equals(b));
+    }
+
+    protected static Date copyDate(Date date){
+        return date == null ? null : new Date(date.getTime());
+    }
+
+    protected static byte[] copyBytes(byte[] bytes){
+        return bytes == null ? null : bytes.clone();
+    }
+
     /**
-     * 按主键读取
+     * 按主键读取, 开启实体缓存时先读缓存. 缓存的实例不外传, 返回的是副本
      * @param pkValue
      * @return
      */
     public T get(PKType pkValue){
+        SqliteEntityCache<T> cache = this.entityCache;
+        if (cache != null && pkValue instanceof Number){
+            long key = ((Number) pkValue).longValue();
+            T o = cache.get(key);
+            if (o != null){
+                return snapshot(o);
+            }
+            long stamp = cache.stamp();
+            o = getFromDatabase(pkValue);
+            if (o != null && cache.put(key, o, stamp)){
+                return snapshot(o);
+            }
+            return o;
+        }
+        return getFromDatabase(pkValue);
+    }
+
+    /**
+     * 按主键查询, 不经过缓存
+     * @param pkValue
+     * @return
+     */
+    protected T getFromDatabase(PKType pkValue){
         if (getStatement == null) {
             StringBuilder s = new StringBuilder(SELECT).append(getSelectFields()).append(FROM).append(this.getTableName());
             s.append(WHERE).append(this.getPkColumn()).append(S_E_Q);
             getStatement = s.toString();
         }
 
-        SQLiteDatabase database = this.getDatabase();
-        Cursor cursor = database.rawQuery(getStatement, new String[]{ pkValue + "" });
+        SQLiteDatabase database = this.getReadDatabase();
+        SqliteBindArgs args = PK_ARGS.get().clear();
+        addPkValue(args, pkValue);
+        Cursor cursor = database.rawQueryWithBinder(getStatement, args);
         List<T> list = loadRecords(cursor);
         if (list.size() == 0){
             return null;
@@ -305,25 +981,11 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public List<T> gets(Set<PKType> pkValues){
-        StringBuilder s = new StringBuilder(SELECT).append(getSelectFields()).append(FROM).append(this.getTableName());
-        s.append(WHERE);
-
-        Iterator<PKType> itor = pkValues.iterator();
-        String[] args = new String[pkValues.size()];
-        int i = 0;
-        while (itor.hasNext()){
-            args[i] = itor.next().toString();
-            s.append(this.getPkColumn()).append(S_E_Q);
-            s.append(S_OR);
-            i++;
+        if (pkValues == null || pkValues.size() == 0){
+            return new ArrayList<T>();
         }
-        s.setLength(s.length() - S_OR.length());
-
-        SQLiteDatabase database = this.getDatabase();
-        Cursor cursor = database.rawQuery(s.toString(), args);
-        List<T> list = loadRecords(cursor);
-        return list;
 
+        return getsIn(pkValues);
     }
 
     /**
@@ -333,29 +995,132 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public List<T> gets(String idWithComma){
+        if (idWithComma == null || idWithComma.length() == 0){
+            return new ArrayList<T>();
+        }
+
         String[] args = idWithComma.split(",");
-        StringBuilder s = new StringBuilder(SELECT).append(getSelectFields()).append(FROM).append(this.getTableName());
-        s.append(WHERE);
+        return getsIn(args, args.length);
+    }
 
-        for (int i = 0; i < args.length; i++) {
-            s.append(this.getPkColumn()).append(S_E_Q);
-            s.append(S_OR);
+    /**
+     * 按主键数组读取
+     * @param pkValues
+     * @return
+     */
+    public List<T> gets(String[] pkValues){
+        if (pkValues == null || pkValues.length == 0){
+            return new ArrayList<T>();
+        }
+
+        return getsIn(pkValues, pkValues.length);
+    }
+
+    /**
+     * 按IN_BUCKETS分批读取, 每批最多IN_BUCKETS最大值个主键
+     * @param keys
+     * @param size
+     * @return
+     */
+    protected List<T> getsIn(String[] keys, int size){
+        List<T> list = new ArrayList<T>(size);
+        SQLiteDatabase database = this.getReadDatabase();
+        final int maxBucket = IN_BUCKETS[IN_BUCKETS.length - 1];
+
+        int offset = 0;
+        while (offset < size){
+            int remain = size - offset;
+            int bucket = 0;
+            while (bucket < IN_BUCKETS.length - 1 && IN_BUCKETS[bucket] < remain){
+                bucket++;
+            }
+
+            int slots = IN_BUCKETS[bucket];
+            int count = Math.min(remain, maxBucket);
+            String[] args = new String[slots];
+            for (int i = 0; i < slots; i++) {
+                args[i] = keys[offset + Math.min(i, count - 1)];
+            }
+
+            Cursor cursor = database.rawQuery(getGetsStatement(bucket), args);
+            list.addAll(loadRecords(cursor));
+            offset += count;
+        }
+
+        return list;
+    }
+
+    /**
+     * 按IN_BUCKETS分批读取, 主键按类型绑定
+     * @param keys
+     * @return
+     */
+    protected List<T> getsIn(Collection<PKType> keys){
+        int size = keys.size();
+        List<T> list = new ArrayList<T>(size);
+        SQLiteDatabase database = this.getReadDatabase();
+        Iterator<PKType> itor = keys.iterator();
+
+        int remain = size;
+        while (remain > 0){
+            int bucket = 0;
+            while (bucket < IN_BUCKETS.length - 1 && IN_BUCKETS[bucket] < remain){
+                bucket++;
+            }
+
+            int slots = IN_BUCKETS[bucket];
+            int count = Math.min(remain, slots);
+            SqliteBindArgs args = PK_ARGS.get().clear();
+            PKType last = null;
+            for (int i = 0; i < slots; i++) {
+                if (i < count){
+                    last = itor.next();
+                }
+                addPkValue(args, last);
+            }
+
+            Cursor cursor = database.rawQueryWithBinder(getGetsStatement(bucket), args);
+            list.addAll(loadRecords(cursor));
+            remain -= count;
         }
-        s.setLength(s.length() - S_OR.length());
 
-        SQLiteDatabase database = this.getDatabase();
-        Cursor cursor = database.rawQuery(s.toString(), args);
-        List<T> list = loadRecords(cursor);
         return list;
     }
 
+    /**
+     * IN_BUCKETS[bucket]个占位符的查询语句
+     * @param bucket
+     * @return
+     */
+    protected String getGetsStatement(int bucket){
+        if (getsStatements == null){
+            getsStatements = new String[IN_BUCKETS.length];
+        }
+
+        String sql = getsStatements[bucket];
+        if (sql == null) {
+            StringBuilder s = new StringBuilder(SELECT).append(getSelectFields()).append(FROM).append(this.getTableName());
+            s.append(WHERE).append(this.getPkColumn()).append(IN);
+            for (int i = 0; i < IN_BUCKETS[bucket]; i++) {
+                s.append(S_QMARK);
+            }
+            s.setLength(s.length() - 2);
+            s.append(")");
+            sql = s.toString();
+            getsStatements[bucket] = sql;
+        }
+
+        return sql;
+    }
+
     /**
      *
      * @param pkValue
      * @return
      */
     public T getWithRef(PKType pkValue){
-        T o = get(pkValue);
+        // 不读实体缓存, wrapRef会修改返回的对象
+        T o = getFromDatabase(pkValue);
         this.wrapRef(o);
         return o;
     }
@@ -387,7 +1152,17 @@ public abstract class SqliteMapper<T, PKType> {
      * @param statement
      * @param o
      */
-    protected abstract void bindInsertStatement(SQLiteStatement statement, T o);
+    protected void bindInsertStatement(SQLiteStatement statement, T o){
+        bindInsertStatement(statement, o, 0);
+    }
+
+    /**
+     * 绑定一行参数
+     * @param statement
+     * @param o
+     * @param offset 多行语句中该行前面的参数个数
+     */
+    protected abstract void bindInsertStatement(SQLiteStatement statement, T o, int offset);
 
     /**
      * 获取已编译的插入语句
@@ -402,6 +1177,8 @@ public abstract class SqliteMapper<T, PKType> {
         }
         this.insertStatementBinder.bind(insertStatement, o);
         int recs = insertStatement.executeUpdateDelete();
+        this.evictCache(getPkValue(o));
+        this.notifyChanged(recs);
         return (recs == 1);
     }
 
@@ -415,11 +1192,7 @@ public abstract class SqliteMapper<T, PKType> {
             return false;
         }
 
-        if (insertStatement == null){
-            this.compileInsertStatement();
-        }
-
-        this.insertStatement.executeUpdateDelete(list, this.insertStatementBinder);
+        this.saveBatch(list.iterator());
 
 //        for (int i = 0; i < list.size(); i++) {
 //            T o = list.get(i);
@@ -441,11 +1214,7 @@ public abstract class SqliteMapper<T, PKType> {
             return false;
         }
 
-        if (insertStatement == null){
-            this.compileInsertStatement();
-        }
-
-        this.insertStatement.executeUpdateDelete(list, this.insertStatementBinder);
+        this.saveBatch(list.iterator());
 
         //TODO:Ref的保存在子类实现
 
@@ -468,11 +1237,7 @@ public abstract class SqliteMapper<T, PKType> {
             return false;
         }
 
-        if (insertStatement == null){
-            this.compileInsertStatement();
-        }
-
-        this.insertStatement.executeUpdateDelete(set, this.insertStatementBinder);
+        this.saveBatch(set.iterator());
 
         //TODO: Ref的保存在子类实现
 
@@ -499,6 +1264,178 @@ public abstract class SqliteMapper<T, PKType> {
         return ret;
     }
 
+    /**
+     * 比较o和snapshot, 返回不同列的mask(COL_XXX), 不包括主键
+     * @param o
+     * @param snapshot
+     * @return
+     */
+    public abstract long dirtyMask(T o, T snapshot);
+
+    /**
+     * 复制一份实体, 用于之后的update(o, snapshot)
+     * @param o
+     * @return
+     */
+    public abstract T snapshot(T o);
+
+    /**
+     * 按mask绑定SET的列, 最后绑定主键
+     * @param statement
+     * @param o
+     * @param mask
+     */
+    protected abstract void bindUpdateStatement(SQLiteStatement statement, T o, long mask);
+
+    /**
+     * 插入, 主键已存在时抛出SQLiteConstraintException
+     * @param o
+     * @return
+     */
+    public boolean insert(T o){
+        if (o == null){
+            return false;
+        }
+        SQLiteStatement statement = getInsertOnlyStatement();
+        synchronized (statement){
+            bindInsertStatement(statement, o, 0);
+            boolean ret = statement.executeInsert() != -1;
+            this.evictCache(getPkValue(o));
+            this.notifyChanged(ret ? 1 : 0);
+            return ret;
+        }
+    }
+
+    /**
+     * 按主键更新所有列
+     * @param o
+     * @return false 记录不存在
+     */
+    public boolean update(T o){
+        return update(o, ALL_COLUMNS);
+    }
+
+    /**
+     * 只更新和snapshot不同的列
+     * @param o
+     * @param snapshot 读取时的副本, 见snapshot(T)
+     * @return false 记录不存在
+     */
+    public boolean update(T o, T snapshot){
+        if (o == null){
+            return false;
+        }
+        if (snapshot == null){
+            return update(o, ALL_COLUMNS);
+        }
+        long mask = dirtyMask(o, snapshot);
+        if (mask == 0){
+            return true;
+        }
+        return update(o, mask);
+    }
+
+    /**
+     * 按主键更新mask中的列
+     * @param o
+     * @param mask COL_XXX的组合
+     * @return false 记录不存在
+     */
+    public boolean update(T o, long mask){
+        if (o == null){
+            return false;
+        }
+        SQLiteStatement statement = getUpdateStatement(mask);
+        if (statement == null){
+            return false;
+        }
+        synchronized (statement){
+            bindUpdateStatement(statement, o, mask);
+            boolean ret = statement.executeUpdateDelete() == 1;
+            this.evictCache(getPkValue(o));
+            this.notifyChanged(ret ? 1 : 0);
+            return ret;
+        }
+    }
+
+    /**
+     * 先按主键更新, 记录不存在时插入. 和save不同, 不会删除再插入整行
+     * @param o
+     * @return
+     */
+    public boolean upsert(T o){
+        if (o == null){
+            return false;
+        }
+        // update和insert在同一个事务里, 避免两次之间别的连接插入同主键
+        SQLiteDatabase database = this.getDatabase();
+        boolean owner = !database.inTransaction();
+        if (owner){
+            database.beginTransaction();
+        }
+        try {
+            boolean ret = update(o, ALL_COLUMNS) || insert(o);
+            if (owner){
+                database.setTransactionSuccessful();
+            }
+            return ret;
+        } finally {
+            if (owner){
+                database.endTransaction();
+            }
+        }
+    }
+
+    protected synchronized SQLiteStatement getInsertOnlyStatement(){
+        if (insertOnlyStatement == null){
+            String sql = buildInsertSql("INSERT into ", 1);
+            SqliteLog.d("insert sql: %s", sql);
+            insertOnlyStatement = this.getDatabase().compileStatement(sql);
+        }
+        return insertOnlyStatement;
+    }
+
+    /**
+     * update t set c1 = ?, c2 = ? where pk = ?
+     * @param mask
+     * @return null 没有需要更新的列
+     */
+    protected synchronized SQLiteStatement getUpdateStatement(long mask){
+        if (updateStatements == null){
+            updateStatements = new LongSparseArray<SQLiteStatement>();
+        }
+        SQLiteStatement statement = updateStatements.get(mask);
+        if (statement != null){
+            return statement;
+        }
+
+        StringBuilder s = new StringBuilder(UPDATE).append(this.getTableName()).append(SET);
+        List<String> columns = this.getColumns();
+        String pkColumn = this.getPkColumn();
+        boolean found = false;
+        for (int i = 0; i < columns.size(); i++) {
+            String column = columns.get(i);
+            if (column.equals(pkColumn)){
+                continue;
+            }
+            long bit = 1L << Math.min(i, 63);
+            if ((mask & bit) != 0){
+                s.append(column).append(S_E_Q).append(S_COMMOA);
+                found = true;
+            }
+        }
+        if (!found){
+            return null;
+        }
+        s.setLength(s.length() - S_COMMOA.length());
+        s.append(WHERE).append(pkColumn).append(S_E_Q);
+
+        SqliteLog.d("update sql: %s", s);
+        statement = this.getDatabase().compileStatement(s.toString());
+        updateStatements.put(mask, statement);
+        return statement;
+    }
+
 
     /**
      * 按主键删除
@@ -514,29 +1451,274 @@ public abstract class SqliteMapper<T, PKType> {
     public abstract T map(Cursor cursor, T o);
 
     /**
-     * 删除where
-     * @param where
-     * @param args
+     * 从CursorWindow直接映射一行, 见fillRecords
+     * @param block
+     * @param row 游标中的行号
+     * @param o
+     */
+    public abstract T mapRow(CursorWindow.RowBlock block, int row, T o);
+
+    /**
+     * 按参数类型绑定, null绑定为NULL, 其他非数字类型按字符串绑定
+     * @param program
+     * @param args
+     */
+    protected static void bindArgs(SQLiteProgram program, Object[] args){
+        program.clearBindings();
+        if (args == null){
+            return;
+        }
+        for (int i = 0; i < args.length; i++) {
+            bindArg(program, i + 1, args[i]);
+        }
+    }
+
+    /**
+     * 按参数类型绑定一个参数
+     * @param program
+     * @param index 从1开始
+     * @param arg
+     */
+    protected static void bindArg(SQLiteProgram program, int index, Object arg){
+        if (arg == null){
+            program.bindNull(index);
+        }else if (arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte){
+            program.bindLong(index, ((Number) arg).longValue());
+        }else if (arg instanceof Double || arg instanceof Float){
+            program.bindDouble(index, ((Number) arg).doubleValue());
+        }else if (arg instanceof Boolean){
+            program.bindLong(index, ((Boolean) arg) ? 1 : 0);
+        }else if (arg instanceof byte[]){
+            program.bindBlob(index, (byte[]) arg);
+        }else{
+            program.bindString(index, arg.toString());
+        }
+    }
+
+    /**
+     * 执行标量查询, 不创建Cursor
+     * @param statement
+     * @param params
+     * @return 没有结果时返回0
+     */
+    protected long simpleQueryForLong(SQLiteStatement statement, Object[] params){
+        synchronized (statement){
+            bindArgs(statement, params);
+            try {
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 执行标量查询, 参数按类型绑定
+     * @param statement
+     * @param args
+     * @return 没有结果时返回0
+     */
+    protected long simpleQueryForLong(SQLiteStatement statement, SqliteBindArgs args){
+        synchronized (statement){
+            if (args == null){
+                statement.clearBindings();
+            }else {
+                args.bindTo(statement);
+            }
+            try {
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 执行更新/删除
+     * @param statement
+     * @param params
+     * @return 影响的行数
+     */
+    protected int executeUpdateDelete(SQLiteStatement statement, Object[] params){
+        synchronized (statement){
+            bindArgs(statement, params);
+            return statement.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * select fields from table [where ...] [order by ...] [limit ? offset ?]
+     * @param op
+     * @param where
+     * @param order
+     * @return
+     */
+    protected String getSelectSql(int op, String where, String order){
+        String sql = statementCache.getSql(op, where, order);
+        if (sql != null){
+            return sql;
+        }
+        StringBuilder s = new StringBuilder(SELECT).append(getSelectFields()).append(FROM).append(this.getTableName());
+        if (where != null){
+            s.append(WHERE).append(where);
+        }
+        if (op == OP_SELECT_PK_DESC){
+            s.append(ORDER_BY).append(this.getPkColumn()).append(DESC);
+        }else if (order != null){
+            s.append(ORDER_BY).append(order);
+        }
+        if (op == OP_SELECT_LIMIT){
+            s.append(LIMIT_OFFSET);
+        }
+        sql = s.toString();
+        statementCache.putSql(op, where, order, sql);
+        return sql;
+    }
+
+    /**
+     * 删除where
+     * @param where
+     * @param args
+     */
+    public void deleteWhere(String where, Object[] args){
+        this.delete(where, args);
+    }
+
+    /**
+     * 删除
+     */
+    public void deleteBy(PKType pkValue){
+        if (deleteStatement == null){
+            this.compileDeleteStatement();
+        }
+        int recs;
+        synchronized (deleteStatement){
+            deleteStatement.clearBindings();
+            bindPkValue(deleteStatement, 1, pkValue);
+            recs = deleteStatement.executeUpdateDelete();
+        }
+        this.evictCache(pkValue);
+        this.notifyChanged(recs);
+    }
+
+    /**
+     * 按主键批量删除. 按IN_BUCKETS分批, 每批一条已编译的语句, 不在事务中时开启一个事务
+     * @param pkValues
+     * @return 删除的行数
+     */
+    public int delete(Collection<PKType> pkValues){
+        if (pkValues == null || pkValues.isEmpty()){
+            return 0;
+        }
+
+        SQLiteDatabase database = this.getDatabase();
+        boolean owner = !database.inTransaction();
+        if (owner){
+            database.beginTransaction();
+        }
+        int recs = 0;
+        try {
+            Iterator<PKType> itor = pkValues.iterator();
+            int remain = pkValues.size();
+            while (remain > 0){
+                int bucket = 0;
+                while (bucket < IN_BUCKETS.length - 1 && IN_BUCKETS[bucket] < remain){
+                    bucket++;
+                }
+                int slots = IN_BUCKETS[bucket];
+                int count = Math.min(remain, slots);
+
+                SQLiteStatement statement = getDeleteInStatement(bucket);
+                synchronized (statement){
+                    statement.clearBindings();
+                    PKType last = null;
+                    for (int i = 0; i < slots; i++) {
+                        // 不足时用最后一个主键补齐
+                        if (i < count){
+                            last = itor.next();
+                        }
+                        bindPkValue(statement, i + 1, last);
+                    }
+                    recs += statement.executeUpdateDelete();
+                }
+                remain -= count;
+            }
+            if (owner){
+                database.setTransactionSuccessful();
+            }
+        } finally {
+            if (owner){
+                database.endTransaction();
+            }
+        }
+
+        if (this.entityCache != null){
+            for (PKType pkValue : pkValues) {
+                this.evictCache(pkValue);
+            }
+        }
+        this.notifyChanged(recs);
+        return recs;
+    }
+
+    /**
+     * 批量删除实体, 见delete(Collection)
+     * @param list
+     * @return 删除的行数
+     */
+    public int deleteAll(List<T> list){
+        if (list == null || list.isEmpty()){
+            return 0;
+        }
+        List<PKType> pkValues = new ArrayList<PKType>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            pkValues.add(getPkValue(list.get(i)));
+        }
+        return delete(pkValues);
+    }
+
+    /**
+     * IN_BUCKETS[bucket]个占位符的删除语句
+     * @param bucket
+     * @return
      */
-    public void deleteWhere(String where, Object[] args){
-        SQLiteDatabase database = this.getDatabase();
-        StringBuilder s = new StringBuilder(DELETE_FROM).append(this.getTableName());
-        s.append(WHERE).append(where);
+    protected synchronized SQLiteStatement getDeleteInStatement(int bucket){
+        if (deleteInStatements == null){
+            deleteInStatements = new SQLiteStatement[IN_BUCKETS.length];
+        }
 
-        database.execSQL(s.toString(), args);
+        SQLiteStatement statement = deleteInStatements[bucket];
+        if (statement == null){
+            StringBuilder s = new StringBuilder(DELETE_FROM).append(this.getTableName());
+            s.append(WHERE).append(this.getPkColumn()).append(IN);
+            for (int i = 0; i < IN_BUCKETS[bucket]; i++) {
+                s.append(S_QMARK);
+            }
+            s.setLength(s.length() - 2);
+            s.append(")");
+            statement = this.getDatabase().compileStatement(s.toString());
+            deleteInStatements[bucket] = statement;
+        }
+        return statement;
     }
 
     /**
-     * 删除
+     * 按主键的类型绑定, 生成的Mapper按字段类型覆盖
+     * @param program
+     * @param index
+     * @param pkValue
      */
-    public void deleteBy(PKType pkValue){
-
-        SQLiteDatabase database = this.getDatabase();
-        StringBuilder s = new StringBuilder(DELETE_FROM).append(this.getTableName());
-        s.append(WHERE).append(getPkColumn()).append(S_E_Q);
-
-        database.execSQL(s.toString(), new Object[]{pkValue});
+    protected void bindPkValue(SQLiteProgram program, int index, PKType pkValue){
+        bindArg(program, index, pkValue);
+    }
 
+    /**
+     * 按主键的类型添加查询参数, 生成的Mapper按字段类型覆盖
+     * @param args
+     * @param pkValue
+     */
+    protected void addPkValue(SqliteBindArgs args, PKType pkValue){
+        args.add(pkValue);
     }
 
     /**
@@ -544,15 +1726,17 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public int count(){
-        SQLiteDatabase database = this.getDatabase();
-        StringBuilder s = new StringBuilder(SELECT).append("count (1)").append(FROM).append(this.getTableName());
-        int ret = 0;
-        Cursor cursor = database.rawQuery(s.toString(), null);
-        if (cursor.moveToFirst()){
-            ret = cursor.getInt(0);
+        SQLiteDatabase database = this.getReadDatabase();
+        SQLiteStatement statement = statementCache.getStatement(database, OP_COUNT, null, null);
+        if (statement == null){
+            StringBuilder s = new StringBuilder(SELECT).append("count (1)").append(FROM).append(this.getTableName());
+            statement = statementCache.putStatement(database, OP_COUNT, null, null, database.compileStatement(s.toString()));
+        }
+        try {
+            return (int) simpleQueryForLong(statement, (Object[]) null);
+        } finally {
+            statementCache.release(statement);
         }
-        cursor.close();
-        return ret;
     }
 
     /**
@@ -561,16 +1745,18 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public int count(String groupBy){
-        SQLiteDatabase database = this.getDatabase();
-        StringBuilder s = new StringBuilder(SELECT).append("count (1)").append(FROM).append(this.getTableName());
-        s.append(" group by ").append(groupBy);
-        int ret = 0;
-        Cursor cursor = database.rawQuery(s.toString(), null);
-        if (cursor.moveToFirst()){
-            ret = cursor.getInt(0);
-        }
-        cursor.close();
-        return ret;
+        SQLiteDatabase database = this.getReadDatabase();
+        SQLiteStatement statement = statementCache.getStatement(database, OP_COUNT_GROUP, null, groupBy);
+        if (statement == null){
+            StringBuilder s = new StringBuilder(SELECT).append("count (1)").append(FROM).append(this.getTableName());
+            s.append(" group by ").append(groupBy);
+            statement = statementCache.putStatement(database, OP_COUNT_GROUP, null, groupBy, database.compileStatement(s.toString()));
+        }
+        try {
+            return (int) simpleQueryForLong(statement, (Object[]) null);
+        } finally {
+            statementCache.release(statement);
+        }
     }
 
     /**
@@ -579,16 +1765,39 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public int countWhere(String where, String[] params){
-        SQLiteDatabase database = this.getDatabase();
-        StringBuilder s = new StringBuilder(SELECT).append("count (1)").append(FROM).append(this.getTableName());
-        s.append(WHERE).append(where);
-        int ret = 0;
-        Cursor cursor = database.rawQuery(s.toString(), params);
-        if (cursor.moveToFirst()){
-            ret = cursor.getInt(0);
-        }
-        cursor.close();
-        return ret;
+        SQLiteDatabase database = this.getReadDatabase();
+        SQLiteStatement statement = statementCache.getStatement(database, OP_COUNT, where, null);
+        if (statement == null){
+            StringBuilder s = new StringBuilder(SELECT).append("count (1)").append(FROM).append(this.getTableName());
+            s.append(WHERE).append(where);
+            statement = statementCache.putStatement(database, OP_COUNT, where, null, database.compileStatement(s.toString()));
+        }
+        try {
+            return (int) simpleQueryForLong(statement, params);
+        } finally {
+            statementCache.release(statement);
+        }
+    }
+
+    /**
+     * 参数按类型绑定
+     * @param where
+     * @param args
+     * @return
+     */
+    public int countWhere(String where, SqliteBindArgs args){
+        SQLiteDatabase database = this.getReadDatabase();
+        SQLiteStatement statement = statementCache.getStatement(database, OP_COUNT, where, null);
+        if (statement == null){
+            StringBuilder s = new StringBuilder(SELECT).append("count (1)").append(FROM).append(this.getTableName());
+            s.append(WHERE).append(where);
+            statement = statementCache.putStatement(database, OP_COUNT, where, null, database.compileStatement(s.toString()));
+        }
+        try {
+            return (int) simpleQueryForLong(statement, args);
+        } finally {
+            statementCache.release(statement);
+        }
     }
 
     /**
@@ -597,17 +1806,19 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public long max(String where, String[] params){
-        SQLiteDatabase database = this.getDatabase();
-        StringBuilder s = new StringBuilder(SELECT).append("max(").append(this.getPkColumn()).append(")")
-                .append(FROM).append(this.getTableName());
-        s.append(WHERE).append(where);
-        long ret = 0l;
-        Cursor cursor = database.rawQuery(s.toString(), params);
-        if (cursor.moveToFirst()){
-            ret = cursor.getLong(0);
-        }
-        cursor.close();
-        return ret;
+        SQLiteDatabase database = this.getReadDatabase();
+        SQLiteStatement statement = statementCache.getStatement(database, OP_MAX, where, null);
+        if (statement == null){
+            StringBuilder s = new StringBuilder(SELECT).append("max(").append(this.getPkColumn()).append(")")
+                    .append(FROM).append(this.getTableName());
+            s.append(WHERE).append(where);
+            statement = statementCache.putStatement(database, OP_MAX, where, null, database.compileStatement(s.toString()));
+        }
+        try {
+            return simpleQueryForLong(statement, params);
+        } finally {
+            statementCache.release(statement);
+        }
     }
 
     /**
@@ -616,17 +1827,19 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public long min(String where, String[] params){
-        SQLiteDatabase database = this.getDatabase();
-        StringBuilder s = new StringBuilder(SELECT).append("min(").append(this.getPkColumn()).append(")")
-                .append(FROM).append(this.getTableName());
-        s.append(WHERE).append(where);
-        long ret = 0l;
-        Cursor cursor = database.rawQuery(s.toString(), params);
-        if (cursor.moveToFirst()){
-            ret = cursor.getLong(0);
-        }
-        cursor.close();
-        return ret;
+        SQLiteDatabase database = this.getReadDatabase();
+        SQLiteStatement statement = statementCache.getStatement(database, OP_MIN, where, null);
+        if (statement == null){
+            StringBuilder s = new StringBuilder(SELECT).append("min(").append(this.getPkColumn()).append(")")
+                    .append(FROM).append(this.getTableName());
+            s.append(WHERE).append(where);
+            statement = statementCache.putStatement(database, OP_MIN, where, null, database.compileStatement(s.toString()));
+        }
+        try {
+            return simpleQueryForLong(statement, params);
+        } finally {
+            statementCache.release(statement);
+        }
     }
 
     /**
@@ -636,16 +1849,18 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public int countWhere(String where, String groupBy, String[] params){
-        SQLiteDatabase database = this.getDatabase();
-        StringBuilder s = new StringBuilder(SELECT).append("count (1)").append(FROM).append(this.getTableName());
-        s.append(WHERE).append(where).append(" group by ").append(groupBy);
-        int ret = 0;
-        Cursor cursor = database.rawQuery(s.toString(), params);
-        if (cursor.moveToFirst()){
-            ret = cursor.getInt(0);
-        }
-        cursor.close();
-        return ret;
+        SQLiteDatabase database = this.getReadDatabase();
+        SQLiteStatement statement = statementCache.getStatement(database, OP_COUNT_GROUP, where, groupBy);
+        if (statement == null){
+            StringBuilder s = new StringBuilder(SELECT).append("count (1)").append(FROM).append(this.getTableName());
+            s.append(WHERE).append(where).append(" group by ").append(groupBy);
+            statement = statementCache.putStatement(database, OP_COUNT_GROUP, where, groupBy, database.compileStatement(s.toString()));
+        }
+        try {
+            return (int) simpleQueryForLong(statement, params);
+        } finally {
+            statementCache.release(statement);
+        }
     }
 
     /**
@@ -655,16 +1870,18 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public int sumWhere(String field, String where, String[] params){
-        SQLiteDatabase database = this.getDatabase();
-        StringBuilder s = new StringBuilder(SELECT).append("sum (").append(field).append(")").append(FROM).append(this.getTableName());
-        s.append(WHERE).append(where);
-        int ret = 0;
-        Cursor cursor = database.rawQuery(s.toString(), params);
-        if (cursor.moveToFirst()){
-            ret = cursor.getInt(0);
-        }
-        cursor.close();
-        return ret;
+        SQLiteDatabase database = this.getReadDatabase();
+        SQLiteStatement statement = statementCache.getStatement(database, OP_SUM, where, field);
+        if (statement == null){
+            StringBuilder s = new StringBuilder(SELECT).append("sum (").append(field).append(")").append(FROM).append(this.getTableName());
+            s.append(WHERE).append(where);
+            statement = statementCache.putStatement(database, OP_SUM, where, field, database.compileStatement(s.toString()));
+        }
+        try {
+            return (int) simpleQueryForLong(statement, params);
+        } finally {
+            statementCache.release(statement);
+        }
     }
 
     /**
@@ -675,16 +1892,19 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public int sumWhere(String field, String where, String groupBy, String[] params){
-        SQLiteDatabase database = this.getDatabase();
-        StringBuilder s = new StringBuilder(SELECT).append("sum ()").append(field).append(")").append(FROM).append(this.getTableName());
-        s.append(WHERE).append(where).append(" group by ").append(groupBy);
-        int ret = 0;
-        Cursor cursor = database.rawQuery(s.toString(), params);
-        if (cursor.moveToFirst()){
-            ret = cursor.getInt(0);
-        }
-        cursor.close();
-        return ret;
+        String key = field + "|" + groupBy;
+        SQLiteDatabase database = this.getReadDatabase();
+        SQLiteStatement statement = statementCache.getStatement(database, OP_SUM_GROUP, where, key);
+        if (statement == null){
+            StringBuilder s = new StringBuilder(SELECT).append("sum (").append(field).append(")").append(FROM).append(this.getTableName());
+            s.append(WHERE).append(where).append(" group by ").append(groupBy);
+            statement = statementCache.putStatement(database, OP_SUM_GROUP, where, key, database.compileStatement(s.toString()));
+        }
+        try {
+            return (int) simpleQueryForLong(statement, params);
+        } finally {
+            statementCache.release(statement);
+        }
     }
 
     /**
@@ -692,14 +1912,10 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public List<T> select(){
-        SQLiteDatabase database = this.getDatabase();
-        StringBuilder s = new StringBuilder(SELECT).append(getSelectFields()).append(FROM).append(this.getTableName());
-        s.append(ORDER_BY).append(this.getPkColumn());
-
-        Cursor cursor = database.rawQuery(s.toString(), null);
-        List<T> list = loadRecords(cursor);
-
-        return list;
+        String sql = getSelectSql(OP_SELECT, null, this.getPkColumn());
+        SQLiteDatabase database = this.getReadDatabase();
+        Cursor cursor = database.rawQuery(sql, null);
+        return loadRecords(cursor);
     }
 
     /**
@@ -708,14 +1924,10 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public List<T> select(String order){
-        SQLiteDatabase database = this.getDatabase();
-        StringBuilder s = new StringBuilder(SELECT).append(getSelectFields()).append(FROM).append(this.getTableName());
-        s.append(ORDER_BY).append(order);
-
-        Cursor cursor = database.rawQuery(s.toString(), null);
-        List<T> list = loadRecords(cursor);
-
-        return list;
+        String sql = getSelectSql(OP_SELECT, null, order);
+        SQLiteDatabase database = this.getReadDatabase();
+        Cursor cursor = database.rawQuery(sql, null);
+        return loadRecords(cursor);
     }
 
     /**
@@ -725,16 +1937,10 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public List<T> selectLimit(String order, String[] params){
-
-        StringBuilder s = new StringBuilder(SELECT).append(getSelectFields()).append(FROM).append(this.getTableName());
-        s.append(ORDER_BY).append(order).append(LIMIT_OFFSET);
-
-        SQLiteDatabase database = this.getDatabase();
-        Cursor cursor = database.rawQuery(s.toString(), params);
-        List<T> list = loadRecords(cursor);
-
-        return list;
-
+        String sql = getSelectSql(OP_SELECT_LIMIT, null, order);
+        SQLiteDatabase database = this.getReadDatabase();
+        Cursor cursor = database.rawQuery(sql, params);
+        return loadRecords(cursor);
     }
 
     /**
@@ -744,15 +1950,10 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public List<T> select(String where, String[] params){
-
-        StringBuilder s = new StringBuilder(SELECT).append(getSelectFields()).append(FROM).append(this.getTableName());
-        s.append(WHERE).append(where).append(ORDER_BY).append(this.getPkColumn()).append(DESC);
-
-        SQLiteDatabase database = this.getDatabase();
-        Cursor cursor = database.rawQuery(s.toString(), params);
-        List<T> list = loadRecords(cursor);
-
-        return list;
+        String sql = getSelectSql(OP_SELECT_PK_DESC, where, null);
+        SQLiteDatabase database = this.getReadDatabase();
+        Cursor cursor = database.rawQuery(sql, params);
+        return loadRecords(cursor);
     }
 
     /**
@@ -763,16 +1964,39 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public List<T> select(String where, String order, String[] params){
+        String sql = getSelectSql(OP_SELECT, where, order);
+        SQLiteDatabase database = this.getReadDatabase();
+        Cursor cursor = database.rawQuery(sql, params);
+        return loadRecords(cursor);
+    }
 
-        StringBuilder s = new StringBuilder(SELECT).append(getSelectFields()).append(FROM).append(this.getTableName());
-        s.append(WHERE).append(where).append(ORDER_BY).append(order);
-
-        SQLiteDatabase database = this.getDatabase();
-        Cursor cursor = database.rawQuery(s.toString(), params);
-        List<T> list = loadRecords(cursor);
-
-        return list;
+    /**
+     * 查询数据, 参数按类型绑定(数字不转成字符串, 可以使用索引)
+     * @param where
+     * @param order
+     * @param args
+     * @return
+     */
+    public List<T> select(String where, String order, SqliteBindArgs args){
+        String sql = getSelectSql(OP_SELECT, where, order);
+        SQLiteDatabase database = this.getReadDatabase();
+        Cursor cursor = database.rawQueryWithBinder(sql, args);
+        return loadRecords(cursor);
+    }
 
+    /**
+     * 查询数据, 复用recycle中的实体对象(如列表Adapter反复刷新同一页)
+     * @param where
+     * @param order
+     * @param params
+     * @param recycle 返回时被填充为查询结果
+     * @return recycle
+     */
+    public List<T> select(String where, String order, String[] params, List<T> recycle){
+        String sql = getSelectSql(OP_SELECT, where, order);
+        SQLiteDatabase database = this.getReadDatabase();
+        Cursor cursor = database.rawQuery(sql, params);
+        return loadRecords(cursor, recycle);
     }
 
     /**
@@ -783,31 +2007,371 @@ public abstract class SqliteMapper<T, PKType> {
      * @return
      */
     public List<T> selectLimit(String where, String order, String[] params){
+        String sql = getSelectSql(OP_SELECT_LIMIT, where, order);
+        SQLiteDatabase database = this.getReadDatabase();
+        Cursor cursor = database.rawQuery(sql, params);
+        return loadRecords(cursor);
+    }
+
+    /**
+     * 分页查询数据, 参数按类型绑定, 最后两个参数为limit和offset
+     * @param where
+     * @param order
+     * @param args
+     * @return
+     */
+    public List<T> selectLimit(String where, String order, SqliteBindArgs args){
+        String sql = getSelectSql(OP_SELECT_LIMIT, where, order);
+        SQLiteDatabase database = this.getReadDatabase();
+        Cursor cursor = database.rawQueryWithBinder(sql, args);
+        return loadRecords(cursor);
+    }
+
+    /**
+     * 分页查询数据, 复用recycle中的实体对象
+     * @param where
+     * @param order
+     * @param params
+     * @param recycle 返回时被填充为查询结果
+     * @return recycle
+     */
+    public List<T> selectLimit(String where, String order, String[] params, List<T> recycle){
+        String sql = getSelectSql(OP_SELECT_LIMIT, where, order);
+        SQLiteDatabase database = this.getReadDatabase();
+        Cursor cursor = database.rawQuery(sql, params);
+        return loadRecords(cursor, recycle);
+    }
+
+    /**
+     * 按主键倒序游标分页(where pk < ? order by pk desc limit ?), 深度翻页和第一页代价相同
+     * @param where 可为null
+     * @param params
+     * @param cursorId 上一页返回的maxCursorId, 0表示第一页. 主键可能为0或负数时使用Long版本
+     * @param limit
+     * @param withTotal 是否计算总数, 否则total为-1
+     * @param callback
+     */
+    public void selectPage(String where, String[] params, long cursorId, int limit, boolean withTotal, SqliteResultCallback<T> callback){
+        this.selectPage(where, params, this.getPkColumn(), true, cursorId != 0 ? Long.valueOf(cursorId) : null, limit, withTotal, callback);
+    }
+
+    /**
+     * 按主键倒序游标分页
+     * @param where 可为null
+     * @param params
+     * @param cursorId 上一页返回的maxCursorId, null表示第一页
+     * @param limit
+     * @param withTotal 是否计算总数, 否则total为-1
+     * @param callback
+     */
+    public void selectPage(String where, String[] params, Long cursorId, int limit, boolean withTotal, SqliteResultCallback<T> callback){
+        this.selectPage(where, params, this.getPkColumn(), true, cursorId, limit, withTotal, callback);
+    }
+
+    /**
+     * 按有索引的排序字段游标分页
+     * @param where 可为null
+     * @param params
+     * @param sortColumn 有索引的整数字段, 且值唯一
+     * @param desc
+     * @param cursorId 上一页返回的maxCursorId, 0表示第一页. 排序字段可能为0或负数时使用Long版本
+     * @param limit
+     * @param withTotal 是否计算总数, 否则total为-1
+     * @param callback 返回当前页, 总数, 以及下一页使用的游标
+     */
+    public void selectPage(String where, String[] params, String sortColumn, boolean desc, long cursorId, int limit, boolean withTotal, SqliteResultCallback<T> callback){
+        this.selectPage(where, params, sortColumn, desc, cursorId != 0 ? Long.valueOf(cursorId) : null, limit, withTotal, callback);
+    }
+
+    /**
+     * 按有索引的排序字段游标分页
+     * @param where 可为null
+     * @param params
+     * @param sortColumn 有索引的整数字段, 且值唯一, 必须是getColumns()中的列名
+     * @param desc
+     * @param cursorId 上一页返回的maxCursorId, null表示第一页
+     * @param limit
+     * @param withTotal 是否计算总数, 否则total为-1
+     * @param callback 返回当前页, 总数, 以及下一页使用的游标(当前页为空时为传入的游标, 第一页为0)
+     */
+    public void selectPage(String where, String[] params, String sortColumn, boolean desc, Long cursorId, int limit, boolean withTotal, SqliteResultCallback<T> callback){
+        int sortIndex = this.getColumns().indexOf(sortColumn);
+        if (sortIndex < 0){
+            throw new IllegalArgumentException("sortColumn is not a column of " + this.getTableName() + ": " + sortColumn);
+        }
+
+        boolean first = cursorId == null;
+        int count = params == null ? 0 : params.length;
+        String[] args = new String[count + (first ? 1 : 2)];
+        if (count > 0){
+            System.arraycopy(params, 0, args, 0, count);
+        }
+        if (!first){
+            args[count++] = String.valueOf(cursorId.longValue());
+        }
+        args[count] = String.valueOf(limit);
+
+        SQLiteDatabase database = this.getReadDatabase();
+        Cursor cursor = database.rawQuery(getPageSql(where, sortColumn, desc, first), args);
+
+        // 第一次移动时才分配窗口, 在此之前换成池中的窗口
+        usePooledWindow(cursor);
+        long maxCursorId = first ? 0 : cursorId;
+        if (cursor.moveToLast()){
+            maxCursorId = cursor.getLong(sortIndex);
+            cursor.moveToPosition(-1);
+        }
+        List<T> list = loadRecords(cursor, new ArrayList<T>(limit));
+
+        int total = withTotal ? this.countPageTotal(where, params) : -1;
+        callback.call(list, total, maxCursorId);
+    }
+
+    /**
+     * selectPage的SQL, 按(where, 排序)缓存
+     * @param where
+     * @param sortColumn
+     * @param desc
+     * @param first 第一页没有游标条件
+     * @return
+     */
+    protected String getPageSql(String where, String sortColumn, boolean desc, boolean first){
+        int op = first ? OP_SELECT_PAGE_FIRST : OP_SELECT_PAGE;
+        String order = desc ? sortColumn + DESC : sortColumn + ASC;
+        String sql = statementCache.getSql(op, where, order);
+        if (sql != null){
+            return sql;
+        }
 
         StringBuilder s = new StringBuilder(SELECT).append(getSelectFields()).append(FROM).append(this.getTableName());
-        s.append(WHERE).append(where).append(ORDER_BY).append(order).append(LIMIT_OFFSET);
+        if (where != null){
+            s.append(WHERE).append("(").append(where).append(")");
+        }
+        if (!first){
+            s.append(where != null ? S_AND : WHERE).append(sortColumn).append(desc ? S_LT : S_GT);
+        }
+        s.append(ORDER_BY).append(order).append(LIMIT);
+        sql = s.toString();
+        statementCache.putSql(op, where, order, sql);
+        return sql;
+    }
 
-        SQLiteDatabase database = this.getDatabase();
-        Cursor cursor = database.rawQuery(s.toString(), params);
-        List<T> list = loadRecords(cursor);
+    /**
+     * 计算selectPage的总数, 按pageTotalCacheMillis缓存
+     * @param where
+     * @param params
+     * @return
+     */
+    protected int countPageTotal(String where, String[] params){
+        if (pageTotalCacheMillis <= 0){
+            return where == null ? this.count() : this.countWhere(where, params);
+        }
 
-//        Timber.d("selectLimit:%s",s.toString());
+        String key = where + Arrays.toString(params);
+        long now = System.currentTimeMillis();
+        synchronized (this){
+            if (pageTotals == null){
+                pageTotals = new ArrayMap<>();
+            }
+            long[] item = pageTotals.get(key);
+            if (item != null && now - item[1] < pageTotalCacheMillis){
+                return (int)item[0];
+            }
+        }
 
-        return list;
+        int total = where == null ? this.count() : this.countWhere(where, params);
+        synchronized (this){
+            pageTotals.put(key, new long[]{total, now});
+        }
+        return total;
+    }
+
+    /**
+     * 逐行遍历查询结果, 适合大表扫描
+     * @param where 可为null
+     * @param order 可为null, 默认按主键
+     * @param params
+     * @param visitor
+     * @return 遍历的记录数
+     */
+    public int iterate(String where, String order, String[] params, SqliteRowVisitor<T> visitor){
+        return this.iterate(where, order, params, false, visitor);
+    }
 
+    /**
+     * 逐行遍历查询结果, 适合大表扫描
+     * @param where 可为null
+     * @param order 可为null, 默认按主键
+     * @param params
+     * @param reuse 为true时所有行复用同一个实体对象, visitor不能持有该对象
+     * @param visitor
+     * @return 遍历的记录数
+     */
+    public int iterate(String where, String order, String[] params, boolean reuse, SqliteRowVisitor<T> visitor){
+        String sql = getSelectSql(OP_SELECT, where, order != null ? order : this.getPkColumn());
+        SQLiteDatabase database = this.getReadDatabase();
+        Cursor cursor = database.rawQuery(sql, params);
+        return iterateRecords(cursor, reuse, visitor);
     }
 
     /**
      * 读取关联的实体
      * @param list
      */
-    public abstract void wrapRef(List<T> list);
+    public void wrapRef(List<T> list){
+        this.wrapRef(list, wrapRefDepth);
+    }
+
+    /**
+     * 读取关联的实体, 最多depth层. 同一次调用(含递归)内每行只读取和处理一次
+     * @param list
+     * @param depth
+     */
+    public void wrapRef(List<T> list, int depth){
+        if (list == null || list.size() == 0 || depth <= 0){
+            return;
+        }
+        SqliteRefSession session = SqliteRefSession.begin();
+        try {
+            List<T> pending = new ArrayList<T>(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                T o = list.get(i);
+                if (o == null){
+                    continue;
+                }
+                session.put(this, getPkValue(o), o);
+                if (session.markWrapped(o, depth)){
+                    pending.add(o);
+                }
+            }
+            if (pending.size() > 0){
+                this.doWrapRef(pending, depth);
+            }
+        } finally {
+            session.end();
+        }
+    }
+
+    /**
+     * 读取关联的实体(生成的代码), 由wrapRef去重后调用
+     * @param list
+     * @param depth
+     */
+    protected abstract void doWrapRef(List<T> list, int depth);
 
     /**
      * 读取关联的实体
      * @param o
      */
-    public abstract void wrapRef(T o);
+    public void wrapRef(T o){
+        this.wrapRef(o, wrapRefDepth);
+    }
+
+    /**
+     * 读取关联的实体, 最多depth层
+     * @param o
+     * @param depth
+     */
+    public void wrapRef(T o, int depth){
+        if (o == null || depth <= 0){
+            return;
+        }
+        SqliteRefSession session = SqliteRefSession.begin();
+        try {
+            session.put(this, getPkValue(o), o);
+            if (session.markWrapped(o, depth)){
+                this.doWrapRef(o, depth);
+            }
+        } finally {
+            session.end();
+        }
+    }
+
+    /**
+     * 读取关联的实体(生成的代码), 由wrapRef去重后调用
+     * @param o
+     * @param depth
+     */
+    protected abstract void doWrapRef(T o, int depth);
+
+    /**
+     * wrapRef读取关联实体时使用: 同一次wrapRef内已读取的行直接返回, 不读实体缓存
+     * @param pkValue
+     * @return
+     */
+    public T getForRef(PKType pkValue){
+        SqliteRefSession session = SqliteRefSession.current();
+        if (session == null){
+            return getFromDatabase(pkValue);
+        }
+        T o = (T) session.get(this, pkValue);
+        if (o == null){
+            o = getFromDatabase(pkValue);
+            session.put(this, pkValue, o);
+        }
+        return o;
+    }
+
+    /**
+     * wrapRef读取关联实体时使用, 只读取本次wrapRef还没有读过的主键
+     * @param pkValues
+     * @return
+     */
+    public List<T> getsForRef(Set<PKType> pkValues){
+        SqliteRefSession session = SqliteRefSession.current();
+        if (session == null || pkValues == null){
+            return gets(pkValues);
+        }
+        List<T> list = new ArrayList<T>(pkValues.size());
+        List<PKType> missing = new ArrayList<PKType>();
+        for (PKType pkValue : pkValues) {
+            T o = (T) session.get(this, pkValue);
+            if (o != null){
+                list.add(o);
+            }else {
+                missing.add(pkValue);
+            }
+        }
+        if (missing.size() > 0){
+            List<T> loaded = getsIn(missing);
+            for (int i = 0; i < loaded.size(); i++) {
+                session.put(this, getPkValue(loaded.get(i)), loaded.get(i));
+            }
+            list.addAll(loaded);
+        }
+        return list;
+    }
+
+    /**
+     * wrapRef读取关联实体时使用(逗号分隔的主键), 只读取本次wrapRef还没有读过的主键
+     * @param pkValues
+     * @return
+     */
+    public List<T> getsForRef(String[] pkValues){
+        SqliteRefSession session = SqliteRefSession.current();
+        if (session == null || pkValues == null){
+            return gets(pkValues);
+        }
+        List<T> list = new ArrayList<T>(pkValues.length);
+        String[] missing = new String[pkValues.length];
+        int count = 0;
+        for (int i = 0; i < pkValues.length; i++) {
+            T o = (T) session.get(this, pkValues[i]);
+            if (o != null){
+                list.add(o);
+            }else {
+                missing[count++] = pkValues[i];
+            }
+        }
+        if (count > 0){
+            List<T> loaded = getsIn(missing, count);
+            for (int i = 0; i < loaded.size(); i++) {
+                session.put(this, getPkValue(loaded.get(i)), loaded.get(i));
+            }
+            list.addAll(loaded);
+        }
+        return list;
+    }
 
     /**
      * 查询全部（并查询关联实体)
@@ -885,11 +2449,22 @@ public abstract class SqliteMapper<T, PKType> {
      */
     public int update(String value, String where, Object[] params){
         SQLiteDatabase database = this.getDatabase();
-        StringBuilder s = new StringBuilder(UPDATE).append(this.getTableName()).append(SET);
-        s.append(value).append(S_EMPTY).append(WHERE).append(where);
-        int ret = database.execSQL(s.toString(), params);
-        Timber.d("update:" + s.toString());
-        return ret;
+        SQLiteStatement statement = statementCache.getStatement(database, OP_UPDATE, where, value);
+        if (statement == null){
+            StringBuilder s = new StringBuilder(UPDATE).append(this.getTableName()).append(SET);
+            s.append(value).append(S_EMPTY).append(WHERE).append(where);
+            SqliteLog.d("update: %s", s);
+            statement = statementCache.putStatement(database, OP_UPDATE, where, value, database.compileStatement(s.toString()));
+        }
+        int recs;
+        try {
+            recs = executeUpdateDelete(statement, params);
+        } finally {
+            statementCache.release(statement);
+        }
+        this.evictCacheAll();
+        this.notifyChanged(recs);
+        return recs;
     }
 
     /**
@@ -899,7 +2474,22 @@ public abstract class SqliteMapper<T, PKType> {
      */
     public int delete(String where, Object[] params){
         SQLiteDatabase database = this.getDatabase();
-        int ret = database.delete(this.getTableName(), where, params);
-        return ret;
+        SQLiteStatement statement = statementCache.getStatement(database, OP_DELETE, where, null);
+        if (statement == null){
+            StringBuilder s = new StringBuilder(DELETE_FROM).append(this.getTableName());
+            if (where != null){
+                s.append(WHERE).append(where);
+            }
+            statement = statementCache.putStatement(database, OP_DELETE, where, null, database.compileStatement(s.toString()));
+        }
+        int recs;
+        try {
+            recs = executeUpdateDelete(statement, params);
+        } finally {
+            statementCache.release(statement);
+        }
+        this.evictCacheAll();
+        this.notifyChanged(recs);
+        return recs;
     }
 }
@@ -0,0 +1,379 @@
+package com.argo.sqlite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * 按语句指纹统计耗时和行数, 记录慢查询.
+ * 1. 指纹: 去掉字面量(数字, 字符串替换为?), IN列表合并为in (?+), 大小写和空白归一
+ * 2. 每个指纹: 执行次数, 耗时直方图, 读取行数(查询)或影响行数(写)
+ * 3. 锁等待, update事务, query块各一个直方图
+ * 4. 超过slowThresholdMillis的语句保留最近SLOW_LOG_SIZE条
+ * 绑定参数的值在这一层不可见, 慢查询只记录指纹和占位符个数
+ */
+public class SqliteMetrics implements SqliteMetricsListener {
+
+    public static final long DEFAULT_SLOW_THRESHOLD_MILLIS = 100;
+    public static final int SLOW_LOG_SIZE = 64;
+    private static final int FINGERPRINT_CACHE_SIZE = 256;
+    private static final int MAX_STATEMENTS = 512;
+
+    /**
+     * 一个指纹的统计
+     */
+    public static final class StatementStats {
+
+        public final String fingerprint;
+        public final boolean query;
+        private final SqliteHistogram latency = new SqliteHistogram();
+        private long rows;
+
+        StatementStats(String fingerprint) {
+            this.fingerprint = fingerprint;
+            this.query = fingerprint.startsWith("select") || fingerprint.startsWith("pragma");
+        }
+
+        void record(long durationNanos, long rows){
+            latency.record(durationNanos);
+            if (rows > 0){
+                synchronized (this){
+                    this.rows += rows;
+                }
+            }
+        }
+
+        public long getCount(){
+            return latency.getCount();
+        }
+
+        public SqliteHistogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return 查询语句为读取的行数, 写语句为影响的行数
+         */
+        public synchronized long getRows() {
+            return rows;
+        }
+
+        @Override
+        public String toString() {
+            return fingerprint + " " + (query ? "rowsRead=" : "rowsWritten=") + getRows() + " " + latency;
+        }
+    }
+
+    /**
+     * 一条慢查询
+     */
+    public static final class SlowStatement {
+
+        public final String fingerprint;
+        public final int paramCount;
+        public final long durationNanos;
+        public final long rows;
+        public final long timestamp;
+
+        SlowStatement(String fingerprint, int paramCount, long durationNanos, long rows, long timestamp) {
+            this.fingerprint = fingerprint;
+            this.paramCount = paramCount;
+            this.durationNanos = durationNanos;
+            this.rows = rows;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return durationNanos / 1000000 + "ms rows=" + rows + " params=" + paramCount + " " + fingerprint;
+        }
+    }
+
+    private volatile long slowThresholdNanos = DEFAULT_SLOW_THRESHOLD_MILLIS * 1000000L;
+
+    private final Map<String, String> fingerprints = new LinkedHashMap<String, String>(FINGERPRINT_CACHE_SIZE, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > FINGERPRINT_CACHE_SIZE;
+        }
+    };
+    private final Map<String, StatementStats> statements = new LinkedHashMap<String, StatementStats>();
+
+    private final SqliteHistogram lockWait = new SqliteHistogram();
+    private final SqliteHistogram transactions = new SqliteHistogram();
+    private final SqliteHistogram queryBlocks = new SqliteHistogram();
+    private long rollbacks;
+
+    private final SlowStatement[] slowLog = new SlowStatement[SLOW_LOG_SIZE];
+    private int slowNext;
+
+    public long getSlowThresholdMillis() {
+        return slowThresholdNanos / 1000000L;
+    }
+
+    public void setSlowThresholdMillis(long slowThresholdMillis) {
+        this.slowThresholdNanos = slowThresholdMillis * 1000000L;
+    }
+
+    @Override
+    public void onStatement(String sql, long durationNanos, long rows) {
+        if (sql == null){
+            return;
+        }
+        String fingerprint = fingerprintOf(sql);
+        StatementStats stats;
+        synchronized (statements){
+            stats = statements.get(fingerprint);
+            if (stats == null){
+                if (statements.size() >= MAX_STATEMENTS){
+                    fingerprint = "<other>";
+                    stats = statements.get(fingerprint);
+                }
+                if (stats == null){
+                    stats = new StatementStats(fingerprint);
+                    statements.put(fingerprint, stats);
+                }
+            }
+        }
+        stats.record(durationNanos, rows);
+
+        if (durationNanos >= slowThresholdNanos){
+            SlowStatement slow = new SlowStatement(fingerprint, countParams(fingerprint), durationNanos, rows, System.currentTimeMillis());
+            synchronized (slowLog){
+                slowLog[slowNext] = slow;
+                slowNext = (slowNext + 1) % SLOW_LOG_SIZE;
+            }
+            Timber.w("slow sql: %s", slow);
+        }
+    }
+
+    @Override
+    public void onLockWait(long waitNanos) {
+        lockWait.record(waitNanos);
+    }
+
+    @Override
+    public void onTransaction(long durationNanos, long retryWaitMillis, boolean committed) {
+        transactions.record(durationNanos);
+        if (!committed){
+            synchronized (this){
+                rollbacks++;
+            }
+        }
+    }
+
+    @Override
+    public void onQueryBlock(String tag, long durationNanos) {
+        queryBlocks.record(durationNanos);
+    }
+
+    /**
+     * @return 各指纹的统计, 按总耗时(次数*平均)从大到小
+     */
+    public List<StatementStats> getStatements(){
+        List<StatementStats> list;
+        synchronized (statements){
+            list = new ArrayList<StatementStats>(statements.values());
+        }
+        Collections.sort(list, new Comparator<StatementStats>() {
+            @Override
+            public int compare(StatementStats lhs, StatementStats rhs) {
+                long l = lhs.latency.getCount() * lhs.latency.getMean();
+                long r = rhs.latency.getCount() * rhs.latency.getMean();
+                return l < r ? 1 : (l == r ? 0 : -1);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * @return 最近的慢查询, 从旧到新
+     */
+    public List<SlowStatement> getSlowStatements(){
+        List<SlowStatement> list = new ArrayList<SlowStatement>(SLOW_LOG_SIZE);
+        synchronized (slowLog){
+            for (int i = 0; i < SLOW_LOG_SIZE; i++) {
+                SlowStatement item = slowLog[(slowNext + i) % SLOW_LOG_SIZE];
+                if (item != null){
+                    list.add(item);
+                }
+            }
+        }
+        return list;
+    }
+
+    public SqliteHistogram getLockWait() {
+        return lockWait;
+    }
+
+    public SqliteHistogram getTransactions() {
+        return transactions;
+    }
+
+    public SqliteHistogram getQueryBlocks() {
+        return queryBlocks;
+    }
+
+    public synchronized long getRollbacks() {
+        return rollbacks;
+    }
+
+    public void reset(){
+        synchronized (statements){
+            statements.clear();
+        }
+        synchronized (slowLog){
+            for (int i = 0; i < SLOW_LOG_SIZE; i++) {
+                slowLog[i] = null;
+            }
+            slowNext = 0;
+        }
+        lockWait.reset();
+        transactions.reset();
+        queryBlocks.reset();
+        synchronized (this){
+            rollbacks = 0;
+        }
+    }
+
+    /**
+     * 输出到日志
+     */
+    public void dump(){
+        Timber.i("sqlite metrics: lockWait %s", lockWait);
+        Timber.i("sqlite metrics: transactions %s, rollbacks: %s", transactions, getRollbacks());
+        Timber.i("sqlite metrics: queryBlocks %s", queryBlocks);
+        List<StatementStats> list = getStatements();
+        for (int i = 0; i < list.size(); i++) {
+            Timber.i("sqlite metrics: %s", list.get(i));
+        }
+    }
+
+    private String fingerprintOf(String sql){
+        synchronized (fingerprints){
+            String fingerprint = fingerprints.get(sql);
+            if (fingerprint == null){
+                fingerprint = fingerprint(sql);
+                fingerprints.put(sql, fingerprint);
+            }
+            return fingerprint;
+        }
+    }
+
+    /**
+     * 语句指纹, 字面量替换为?, in (?, ?, ...)合并为in (?+)
+     * @param sql
+     * @return
+     */
+    public static String fingerprint(String sql){
+        StringBuilder sb = new StringBuilder(sql.length());
+        int n = sql.length();
+        boolean space = false;
+        for (int i = 0; i < n; i++) {
+            char c = sql.charAt(i);
+            if (c == '\''){
+                // 字符串字面量, ''为转义
+                i++;
+                while (i < n){
+                    if (sql.charAt(i) == '\''){
+                        if (i + 1 < n && sql.charAt(i + 1) == '\''){
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                appendToken(sb, '?', space);
+                space = false;
+            }else if (Character.isDigit(c) && !isIdentifierTail(sb)){
+                while (i + 1 < n && (Character.isLetterOrDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')){
+                    i++;
+                }
+                appendToken(sb, '?', space);
+                space = false;
+            }else if (Character.isWhitespace(c)){
+                space = sb.length() > 0;
+            }else {
+                appendToken(sb, Character.toLowerCase(c), space);
+                space = false;
+            }
+        }
+        return collapseInLists(sb.toString());
+    }
+
+    private static void appendToken(StringBuilder sb, char c, boolean space){
+        if (space){
+            sb.append(' ');
+        }
+        sb.append(c);
+    }
+
+    private static boolean isIdentifierTail(StringBuilder sb){
+        if (sb.length() == 0){
+            return false;
+        }
+        char last = sb.charAt(sb.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_';
+    }
+
+    private static String collapseInLists(String sql){
+        int from = sql.indexOf("in (");
+        if (from < 0){
+            return sql;
+        }
+        StringBuilder sb = new StringBuilder(sql.length());
+        int last = 0;
+        while (from >= 0){
+            int start = from + 4;
+            int i = start;
+            boolean params = false;
+            while (i < sql.length()){
+                char c = sql.charAt(i);
+                if (c == '?'){
+                    params = true;
+                }else if (c != ',' && c != ' '){
+                    break;
+                }
+                i++;
+            }
+            boolean matched = params && i < sql.length() && sql.charAt(i) == ')'
+                    && (from == 0 || !Character.isLetterOrDigit(sql.charAt(from - 1)));
+            if (matched){
+                sb.append(sql, last, start).append("?+");
+                last = i;
+            }
+            from = sql.indexOf("in (", i);
+        }
+        sb.append(sql, last, sql.length());
+        return sb.toString();
+    }
+
+    private static int countParams(String fingerprint){
+        int count = 0;
+        for (int i = 0; i < fingerprint.length(); i++) {
+            if (fingerprint.charAt(i) == '?'){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("SqliteMetrics{");
+        synchronized (statements){
+            sb.append("statements=").append(statements.size());
+        }
+        sb.append(", lockWait=").append(lockWait);
+        sb.append(", transactions=").append(transactions);
+        sb.append(", queryBlocks=").append(queryBlocks);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,25 @@
+package com.argo.sqlite;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+/**
+ * 语句/事务耗时的监听, 见SqliteContext.setMetricsListener. 默认实现为SqliteMetrics
+ * 回调在执行线程上(多数时候持有数据库锁), 实现必须足够轻, 不能再访问数据库
+ */
+public interface SqliteMetricsListener extends SQLiteDatabase.MetricsListener {
+
+    /**
+     * 一次update事务结束
+     * @param durationNanos 事务总耗时(含重试)
+     * @param retryWaitMillis 数据库被锁时重试等待的时间
+     * @param committed 是否提交成功
+     */
+    void onTransaction(long durationNanos, long retryWaitMillis, boolean committed);
+
+    /**
+     * 一次query块结束
+     * @param tag SqliteContext.query的tag
+     * @param durationNanos
+     */
+    void onQueryBlock(String tag, long durationNanos);
+}
@@ -0,0 +1,15 @@
+package com.argo.sqlite;
+
+import java.util.List;
+
+/**
+ * SqliteLiveQuery的结果, 在通知线程回调
+ */
+public interface SqliteQueryObserver<T> {
+
+    /**
+     *
+     * @param list 重新查询的结果
+     */
+    void onChanged(List<T> list);
+}
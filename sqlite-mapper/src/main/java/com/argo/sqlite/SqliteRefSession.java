@@ -0,0 +1,89 @@
+package com.argo.sqlite;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * 一次wrapRef调用(含递归)内的实体表, 按(Mapper, 主键)记录已读取的实体, 按实体记录已读取关联的层数.
+ * 自关联(如parent/subCities)时每行只读取一次, 同一主键得到同一个对象
+ */
+final class SqliteRefSession {
+
+    private static final ThreadLocal<SqliteRefSession> CURRENT = new ThreadLocal<SqliteRefSession>();
+
+    private final Map<SqliteMapper, Map<String, Object>> rows = new IdentityHashMap<SqliteMapper, Map<String, Object>>();
+    private final Map<Object, Integer> wrapped = new IdentityHashMap<Object, Integer>();
+    private int nesting;
+
+    private SqliteRefSession() {
+    }
+
+    /**
+     * @return 当前线程正在进行的wrapRef, 没有时为null
+     */
+    static SqliteRefSession current(){
+        return CURRENT.get();
+    }
+
+    /**
+     * 开始(或嵌套进入)当前线程的wrapRef, 必须与end配对
+     * @return
+     */
+    static SqliteRefSession begin(){
+        SqliteRefSession session = CURRENT.get();
+        if (session == null){
+            session = new SqliteRefSession();
+            CURRENT.set(session);
+        }
+        session.nesting++;
+        return session;
+    }
+
+    void end(){
+        if (--nesting == 0){
+            CURRENT.remove();
+        }
+    }
+
+    Object get(SqliteMapper mapper, Object pkValue){
+        Map<String, Object> map = rows.get(mapper);
+        return map == null ? null : map.get(String.valueOf(pkValue));
+    }
+
+    /**
+     * 记录已读取的实体, 已有时保留原来的
+     * @param mapper
+     * @param pkValue
+     * @param o
+     */
+    void put(SqliteMapper mapper, Object pkValue, Object o){
+        if (pkValue == null || o == null){
+            return;
+        }
+        Map<String, Object> map = rows.get(mapper);
+        if (map == null){
+            map = new HashMap<String, Object>();
+            rows.put(mapper, map);
+        }
+        String key = String.valueOf(pkValue);
+        if (!map.containsKey(key)){
+            map.put(key, o);
+        }
+    }
+
+    /**
+     * 标记实体将读取depth层关联
+     * @param o
+     * @param depth
+     * @return false 已经读取过不少于depth层, 不需要再读
+     */
+    boolean markWrapped(Object o, int depth){
+        Integer done = wrapped.get(o);
+        if (done != null && done >= depth){
+            return false;
+        }
+        wrapped.put(o, depth);
+        return true;
+    }
+}
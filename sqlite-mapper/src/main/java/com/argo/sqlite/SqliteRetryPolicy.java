@@ -0,0 +1,104 @@
+package com.argo.sqlite;
+
+import java.util.Random;
+
+/**
+ * 数据库被锁(database is locked)时的处理策略:
+ * 1. busyTimeoutMillis 交给SQLite的busy handler等待
+ * 2. 仍然失败时回滚事务, 按指数退避(带随机抖动)重试, 最多maxRetries次
+ * 3. 每个SqliteContext在budgetWindowMillis内最多重试retryBudget次, 防止锁风暴时不断重试
+ */
+public class SqliteRetryPolicy {
+
+    private int busyTimeoutMillis = 2000;
+    private int maxRetries = 3;
+    private long baseBackoffMillis = 20;
+    private long maxBackoffMillis = 500;
+    private int retryBudget = 20;
+    private long budgetWindowMillis = 10000;
+
+    private final Random random = new Random();
+    private long budgetWindowStart = 0;
+    private int budgetUsed = 0;
+
+    public int getBusyTimeoutMillis() {
+        return busyTimeoutMillis;
+    }
+
+    public void setBusyTimeoutMillis(int busyTimeoutMillis) {
+        this.busyTimeoutMillis = busyTimeoutMillis;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getBaseBackoffMillis() {
+        return baseBackoffMillis;
+    }
+
+    public void setBaseBackoffMillis(long baseBackoffMillis) {
+        this.baseBackoffMillis = baseBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public int getRetryBudget() {
+        return retryBudget;
+    }
+
+    public void setRetryBudget(int retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
+    public long getBudgetWindowMillis() {
+        return budgetWindowMillis;
+    }
+
+    public void setBudgetWindowMillis(long budgetWindowMillis) {
+        this.budgetWindowMillis = budgetWindowMillis;
+    }
+
+    /**
+     * 第attempt次重试前的等待时间, 在[cap/2, cap]之间随机, cap = min(max, base * 2^attempt)
+     * @param attempt 从0开始
+     * @return
+     */
+    public long backoffMillis(int attempt){
+        long cap = baseBackoffMillis << Math.min(attempt, 16);
+        if (cap > maxBackoffMillis || cap <= 0){
+            cap = maxBackoffMillis;
+        }
+        long half = cap / 2;
+        synchronized (random){
+            return half + (long)(random.nextDouble() * (cap - half));
+        }
+    }
+
+    /**
+     * 申请一次重试配额
+     * @return false 配额已用完
+     */
+    public synchronized boolean acquireRetry(){
+        long now = System.currentTimeMillis();
+        if (now - budgetWindowStart >= budgetWindowMillis){
+            budgetWindowStart = now;
+            budgetUsed = 0;
+        }
+        if (budgetUsed >= retryBudget){
+            return false;
+        }
+        budgetUsed++;
+        return true;
+    }
+}
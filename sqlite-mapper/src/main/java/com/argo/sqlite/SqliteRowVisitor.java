@@ -0,0 +1,15 @@
+package com.argo.sqlite;
+
+/**
+ * 逐行遍历查询结果
+ */
+public interface SqliteRowVisitor<T> {
+
+    /**
+     *
+     * @param item
+     * @param position
+     * @return false 停止遍历
+     */
+    boolean visit(T item, int position);
+}
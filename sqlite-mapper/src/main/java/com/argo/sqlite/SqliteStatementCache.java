@@ -0,0 +1,199 @@
+package com.argo.sqlite;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SqliteMapper动态查询的缓存, 按(操作, where, order)缓存:
+ * 1. 拼好的SQL(select类查询, 交给rawQuery)
+ * 2. 已编译的SQLiteStatement(聚合, 更新, 删除), 按数据库连接区分
+ * 超过maxSize时按LRU淘汰, 淘汰的语句会被close
+ *
+ * getStatement/putStatement返回的语句已加一次引用(SQLiteClosable), 用完后必须release.
+ * 淘汰或clear只释放缓存自己的引用, 最后一个使用者release后才真正释放.
+ */
+public class SqliteStatementCache {
+
+    public static final int DEFAULT_MAX_SIZE = 64;
+
+    /**
+     * 缓存key
+     */
+    static final class Key {
+
+        final SQLiteDatabase database;
+        final int op;
+        final String where;
+        final String order;
+        final int hash;
+
+        Key(SQLiteDatabase database, int op, String where, String order) {
+            this.database = database;
+            this.op = op;
+            this.where = where;
+            this.order = order;
+            int h = System.identityHashCode(database);
+            h = 31 * h + op;
+            h = 31 * h + (where == null ? 0 : where.hashCode());
+            h = 31 * h + (order == null ? 0 : order.hashCode());
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return op == key.op
+                    && database == key.database
+                    && SqliteMapper.isEqual(where, key.where)
+                    && SqliteMapper.isEqual(order, key.order);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final LinkedHashMap<Key, String> sqls;
+    private final LinkedHashMap<Key, SQLiteStatement> statements;
+    /**
+     * 在锁内淘汰的语句, 出锁后再close
+     */
+    private final List<SQLiteStatement> evicted = new ArrayList<SQLiteStatement>();
+
+    public SqliteStatementCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public SqliteStatementCache(final int maxSize) {
+        this.sqls = new LinkedHashMap<Key, String>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.statements = new LinkedHashMap<Key, SQLiteStatement>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, SQLiteStatement> eldest) {
+                if (size() > maxSize){
+                    evicted.add(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     *
+     * @param op
+     * @param where
+     * @param order
+     * @return null 未缓存
+     */
+    public synchronized String getSql(int op, String where, String order){
+        return sqls.get(new Key(null, op, where, order));
+    }
+
+    public synchronized void putSql(int op, String where, String order, String sql){
+        sqls.put(new Key(null, op, where, order), sql);
+    }
+
+    /**
+     *
+     * @param database
+     * @param op
+     * @param where
+     * @param order
+     * @return null 未缓存, 否则用完后调用release
+     */
+    public synchronized SQLiteStatement getStatement(SQLiteDatabase database, int op, String where, String order){
+        SQLiteStatement statement = statements.get(new Key(database, op, where, order));
+        if (statement != null){
+            statement.acquireReference();
+        }
+        return statement;
+    }
+
+    /**
+     * 缓存语句, 已有缓存时关闭statement并返回已缓存的. 返回的语句用完后调用release
+     * @param database
+     * @param op
+     * @param where
+     * @param order
+     * @param statement
+     * @return
+     */
+    public SQLiteStatement putStatement(SQLiteDatabase database, int op, String where, String order, SQLiteStatement statement){
+        Key key = new Key(database, op, where, order);
+        SQLiteStatement exists;
+        List<SQLiteStatement> list = null;
+        synchronized (this){
+            exists = statements.get(key);
+            if (exists == null){
+                statement.acquireReference();
+                statements.put(key, statement);
+                if (evicted.size() > 0){
+                    list = new ArrayList<SQLiteStatement>(evicted);
+                    evicted.clear();
+                }
+            }else{
+                exists.acquireReference();
+            }
+        }
+        if (exists != null){
+            closeStatement(statement);
+            return exists;
+        }
+        if (list != null){
+            for (int i = 0; i < list.size(); i++) {
+                closeStatement(list.get(i));
+            }
+        }
+        return statement;
+    }
+
+    /**
+     * 释放getStatement/putStatement加的引用
+     * @param statement
+     */
+    public void release(SQLiteStatement statement){
+        if (statement != null){
+            statement.releaseReference();
+        }
+    }
+
+    /**
+     * 清除并关闭所有语句
+     */
+    public void clear(){
+        List<SQLiteStatement> list;
+        synchronized (this){
+            sqls.clear();
+            list = new ArrayList<SQLiteStatement>(statements.values());
+            statements.clear();
+        }
+        for (int i = 0; i < list.size(); i++) {
+            closeStatement(list.get(i));
+        }
+    }
+
+    public synchronized int size(){
+        return statements.size() + sqls.size();
+    }
+
+    /**
+     * 释放缓存的引用, 正在使用的语句等使用者release后才释放
+     * @param statement
+     */
+    private static void closeStatement(SQLiteStatement statement){
+        statement.close();
+    }
+}
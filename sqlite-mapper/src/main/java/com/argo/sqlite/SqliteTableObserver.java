@@ -0,0 +1,15 @@
+package com.argo.sqlite;
+
+import java.util.Set;
+
+/**
+ * 表变化的通知, 事务提交后在写线程回调, 不要做耗时操作
+ */
+public interface SqliteTableObserver {
+
+    /**
+     *
+     * @param tables 本次提交写过的表(已合并)
+     */
+    void onTablesChanged(Set<String> tables);
+}
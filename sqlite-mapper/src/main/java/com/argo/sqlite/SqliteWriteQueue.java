@@ -0,0 +1,339 @@
+package com.argo.sqlite;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * 单写线程队列(group commit)
+ * 1. 队列里的写任务合并到一个事务执行, 每批最多maxBatchSize个, 最多等待maxBatchMillis
+ * 2. 每个任务用SAVEPOINT隔离, 任务失败只回滚自己
+ * 3. 事务提交后才完成Future
+ * 4. 队列满时submit阻塞调用线程(背压)
+ * 5. shutdown()提交完已接收的任务再停止, shutdownNow()取消未提交的任务
+ * 6. 没有start或已停止时提交的任务以RejectedExecutionException失败; 已cancel的任务不执行
+ */
+public class SqliteWriteQueue {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final long DEFAULT_BATCH_MILLIS = 5;
+
+    private static final String SAVEPOINT = "SAVEPOINT sqlite_write_job";
+    private static final String RELEASE = "RELEASE sqlite_write_job";
+    private static final String ROLLBACK_TO = "ROLLBACK TO sqlite_write_job";
+
+    private static final Callable<Boolean> NOOP = new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+            return Boolean.TRUE;
+        }
+    };
+
+    /**
+     * shutdown()唤醒写线程用, 不会被执行
+     */
+    private static final Job STOP = new Job(null);
+
+    /**
+     * 写任务
+     */
+    private static final class Job extends FutureTask<Boolean> {
+
+        private final SqliteBlock<SQLiteDatabase> block;
+        private Exception error;
+
+        Job(SqliteBlock<SQLiteDatabase> block) {
+            super(NOOP);
+            this.block = block;
+        }
+
+        void finish(boolean committed){
+            if (error != null){
+                setException(error);
+            }else if (!committed){
+                setException(new SQLiteException("transaction rollback"));
+            }else{
+                set(Boolean.TRUE);
+            }
+        }
+
+        void reject(){
+            setException(new RejectedExecutionException("write queue is not running"));
+        }
+    }
+
+    private final SqliteContext dbContext;
+    private final BlockingQueue<Job> queue;
+    private final int maxBatchSize;
+    private final long maxBatchMillis;
+
+    private volatile boolean running = false;
+    private volatile boolean cancelled = false;
+    private volatile Thread writer;
+
+    public SqliteWriteQueue(SqliteContext dbContext) {
+        this(dbContext, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_MILLIS);
+    }
+
+    /**
+     *
+     * @param dbContext
+     * @param capacity 队列容量
+     * @param maxBatchSize 每个事务最多合并的任务数
+     * @param maxBatchMillis 收到第一个任务后最多等待多久再提交
+     */
+    public SqliteWriteQueue(SqliteContext dbContext, int capacity, int maxBatchSize, long maxBatchMillis) {
+        this.dbContext = dbContext;
+        this.queue = new ArrayBlockingQueue<Job>(capacity);
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchMillis = maxBatchMillis;
+    }
+
+    /**
+     * 启动写线程
+     */
+    public synchronized void start(){
+        if (running){
+            return;
+        }
+        running = true;
+        cancelled = false;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "sqlite-writer-" + dbContext.getTag());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 停止写线程, 等待已提交的任务全部提交事务后返回
+     * 写线程的事务需要SqliteContext的锁, 不能在update块里调用
+     */
+    public void shutdown(){
+        Thread thread;
+        synchronized (this){
+            if (!running){
+                return;
+            }
+            running = false;
+            thread = writer;
+            writer = null;
+        }
+        queue.offer(STOP);
+        if (thread == Thread.currentThread()){
+            return;
+        }
+        if (Thread.holdsLock(dbContext)){
+            Timber.w("db-%s writer shutdown inside update, not waiting for drain", dbContext.getTag());
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 立即停止写线程, 未提交的任务被取消
+     */
+    public void shutdownNow(){
+        Thread thread;
+        synchronized (this){
+            if (!running){
+                return;
+            }
+            running = false;
+            cancelled = true;
+            thread = writer;
+            writer = null;
+        }
+        thread.interrupt();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 当前排队的任务数
+     * @return
+     */
+    public int size(){
+        return queue.size();
+    }
+
+    /**
+     * 提交写任务, 队列满时阻塞
+     * @param block
+     * @return 事务提交后完成, 任务异常, 事务回滚或队列已停止时get()抛出ExecutionException
+     * @throws InterruptedException
+     */
+    public Future<Boolean> submit(SqliteBlock<SQLiteDatabase> block) throws InterruptedException {
+        Job job = new Job(block);
+        if (!running){
+            job.reject();
+            return job;
+        }
+        queue.put(job);
+        checkAccepted(job);
+        return job;
+    }
+
+    /**
+     * 提交写任务, 队列满时最多等待timeout
+     * @param block
+     * @param timeout
+     * @param unit
+     * @return null 队列已满
+     * @throws InterruptedException
+     */
+    public Future<Boolean> offer(SqliteBlock<SQLiteDatabase> block, long timeout, TimeUnit unit) throws InterruptedException {
+        Job job = new Job(block);
+        if (!running){
+            job.reject();
+            return job;
+        }
+        if (!queue.offer(job, timeout, unit)){
+            return null;
+        }
+        checkAccepted(job);
+        return job;
+    }
+
+    /**
+     * 入队时写线程可能已经停止并排空队列, 这时取回任务并拒绝
+     * @param job
+     */
+    private void checkAccepted(Job job){
+        if (!running && queue.remove(job)){
+            job.reject();
+        }
+    }
+
+    private void loop(){
+        final Thread self = Thread.currentThread();
+        final List<Job> batch = new ArrayList<Job>(maxBatchSize);
+        try {
+            while (running && writer == self){
+                Job first = queue.take();
+                if (first != STOP){
+                    batch.add(first);
+                }
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                long deadline = System.currentTimeMillis() + maxBatchMillis;
+                while (running && batch.size() < maxBatchSize){
+                    long remain = deadline - System.currentTimeMillis();
+                    if (remain <= 0){
+                        break;
+                    }
+                    Job next = queue.poll(remain, TimeUnit.MILLISECONDS);
+                    if (next == null || next == STOP){
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                }
+                commit(batch);
+            }
+        } catch (InterruptedException e) {
+            SqliteLog.d("db-%s writer interrupted", dbContext.getTag());
+        } finally {
+            if (cancelled){
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).cancel(false);
+                }
+                batch.clear();
+                Job job;
+                while ((job = queue.poll()) != null){
+                    job.cancel(false);
+                }
+            } else {
+                commit(batch);
+                // shutdown: 提交剩余已接收的任务
+                while (!running && queue.drainTo(batch, maxBatchSize) > 0){
+                    commit(batch);
+                }
+            }
+            // 排空后还在队列里的任务拒绝, 被重新start时留给新的写线程
+            if (!running){
+                Job job;
+                while ((job = queue.poll()) != null){
+                    if (job != STOP){
+                        job.reject();
+                    }
+                }
+            }
+        }
+    }
+
+    private void commit(final List<Job> batch){
+        // drainTo可能取到STOP; 已cancel的任务不执行
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            Job job = batch.get(i);
+            if (job == STOP || job.isCancelled()){
+                batch.remove(i);
+            }
+        }
+        if (batch.isEmpty()){
+            return;
+        }
+        boolean committed = dbContext.update(new SqliteBlock<SQLiteDatabase>() {
+            @Override
+            public void execute(SQLiteDatabase engine) {
+                SqliteChangeTracker tracker = dbContext.getChangeTracker();
+                for (int i = 0; i < batch.size(); i++) {
+                    Job job = batch.get(i);
+                    if (job.isCancelled()){
+                        continue;
+                    }
+                    // update()重试时会再次执行
+                    job.error = null;
+                    engine.execSQL(SAVEPOINT);
+                    tracker.savepoint();
+                    try {
+                        job.block.execute(engine);
+                        engine.execSQL(RELEASE);
+                        tracker.releaseSavepoint();
+                    } catch (SQLiteException e) {
+                        if (SqliteContext.isLocked(e)){
+                            // 锁冲突回滚整个事务, 由update()重试整批
+                            throw e;
+                        }
+                        job.error = e;
+                        engine.execSQL(ROLLBACK_TO);
+                        engine.execSQL(RELEASE);
+                        tracker.rollbackSavepoint();
+                    } catch (Exception e) {
+                        job.error = e;
+                        engine.execSQL(ROLLBACK_TO);
+                        engine.execSQL(RELEASE);
+                        tracker.rollbackSavepoint();
+                    }
+                }
+            }
+        });
+        if (SqliteLog.isDebug()){
+            Timber.d("db-%s writer commit %s jobs, ok: %s", dbContext.getTag(), batch.size(), committed);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).finish(committed);
+        }
+        batch.clear();
+    }
+}
@@ -560,6 +560,80 @@ public class CursorWindow extends android.database.CursorWindow implements Parce
     /** Clears out the native side of things */
     private native void native_clear();
 
+    /**
+     * Acquires this window once for reading a block of rows. The accessors of the returned
+     * {@link RowBlock} go straight to the native window without the per-call reference
+     * counting and cursor position checks. {@link RowBlock#close()} must be called when done.
+     *
+     * @return a reader over the rows currently held by this window
+     */
+    public RowBlock openBlock() {
+        acquireReference();
+        return new RowBlock();
+    }
+
+    /**
+     * Reads rows of an acquired {@link CursorWindow}, see {@link #openBlock()}.
+     * Rows are absolute cursor positions, like the accessors of {@link CursorWindow}.
+     */
+    public final class RowBlock {
+
+        private boolean mClosed = false;
+
+        private RowBlock() {
+        }
+
+        /** the first row held by the window */
+        public int getStartPosition() {
+            return mStartPos;
+        }
+
+        /** one past the last row held by the window */
+        public int getEndPosition() {
+            return mStartPos + getNumRows_native();
+        }
+
+        public boolean isNull(int row, int col) {
+            return isNull_native(row - mStartPos, col);
+        }
+
+        public long getLong(int row, int col) {
+            return getLong_native(row - mStartPos, col);
+        }
+
+        public int getInt(int row, int col) {
+            return (int) getLong_native(row - mStartPos, col);
+        }
+
+        public short getShort(int row, int col) {
+            return (short) getLong_native(row - mStartPos, col);
+        }
+
+        public double getDouble(int row, int col) {
+            return getDouble_native(row - mStartPos, col);
+        }
+
+        public float getFloat(int row, int col) {
+            return (float) getDouble_native(row - mStartPos, col);
+        }
+
+        public String getString(int row, int col) {
+            return getString_native(row - mStartPos, col);
+        }
+
+        public byte[] getBlob(int row, int col) {
+            return getBlob_native(row - mStartPos, col);
+        }
+
+        /** releases the reference acquired by {@link #openBlock()} */
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                releaseReference();
+            }
+        }
+    }
+
     /**
      * Cleans up the native resources associated with the window.
      */
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sqlcipher;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small process-wide pool of local {@link CursorWindow}s. Cursors that opt in (see
+ * {@link net.sqlcipher.database.SQLiteCursor#setUsePooledWindow(boolean)}) take their window
+ * from here and hand it back cleared when they are closed, instead of allocating and freeing
+ * a native window per query.
+ *
+ * A pooled window must not be used after the cursor that owned it is closed.
+ */
+public final class CursorWindowPool {
+
+    /** default number of idle windows kept */
+    public static final int DEFAULT_MAX_IDLE = 4;
+
+    private static final ArrayDeque<CursorWindow> sIdle = new ArrayDeque<CursorWindow>();
+    private static int sMaxIdle = DEFAULT_MAX_IDLE;
+    private static long sCreated;
+    private static long sReused;
+
+    private CursorWindowPool() {
+    }
+
+    /**
+     * @return an empty local window, reused from the pool if possible
+     */
+    public static CursorWindow obtain() {
+        synchronized (sIdle) {
+            CursorWindow window = sIdle.pollFirst();
+            if (window != null) {
+                sReused++;
+                return window;
+            }
+            sCreated++;
+        }
+        return new CursorWindow(true /* the window is local only */);
+    }
+
+    /**
+     * Clears the window and keeps it for reuse, or closes it if the pool is full.
+     */
+    public static void recycle(CursorWindow window) {
+        if (window == null) {
+            return;
+        }
+        window.clear();
+        window.setStartPosition(0);
+        synchronized (sIdle) {
+            if (sIdle.size() < sMaxIdle) {
+                sIdle.addFirst(window);
+                return;
+            }
+        }
+        window.close();
+    }
+
+    /**
+     * Sets the number of idle windows kept, closing the ones above the new limit.
+     */
+    public static void setMaxIdle(int maxIdle) {
+        synchronized (sIdle) {
+            sMaxIdle = maxIdle;
+            while (sIdle.size() > maxIdle) {
+                sIdle.pollLast().close();
+            }
+        }
+    }
+
+    /**
+     * Closes all idle windows, e.g. on low memory.
+     */
+    public static void trim() {
+        synchronized (sIdle) {
+            while (!sIdle.isEmpty()) {
+                sIdle.pollLast().close();
+            }
+        }
+    }
+
+    /** number of windows allocated because the pool was empty */
+    public static long getCreatedCount() {
+        synchronized (sIdle) {
+            return sCreated;
+        }
+    }
+
+    /** number of windows served from the pool */
+    public static long getReusedCount() {
+        synchronized (sIdle) {
+            return sReused;
+        }
+    }
+}
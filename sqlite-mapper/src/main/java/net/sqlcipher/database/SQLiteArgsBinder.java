@@ -0,0 +1,14 @@
+package net.sqlcipher.database;
+
+/**
+ * 按类型绑定查询参数, 见SQLiteDatabase.rawQueryWithBinder
+ */
+public interface SQLiteArgsBinder {
+
+    /**
+     * 绑定参数(从1开始), 只在创建查询时调用一次, 绑定的值由SQLiteQuery复制
+     * @param program
+     */
+    void bindTo(SQLiteProgram program);
+
+}
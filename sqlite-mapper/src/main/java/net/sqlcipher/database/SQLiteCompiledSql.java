@@ -53,6 +53,9 @@ import android.util.Log;
     /** when in cache and is in use, this member is set */
     private boolean mInUse = false;
 
+    /** number of times this statement was served from the compiled-sql cache */
+    /* package */ int mHits = 0;
+
     /* package */ SQLiteCompiledSql(SQLiteDatabase db, String sql) {
         if (!db.isOpen()) {
             throw new IllegalStateException("database " + db.getPath() + " already closed");
@@ -112,6 +115,10 @@ import android.util.Log;
         }
     }
 
+    /* package */ String getSqlString() {
+        return mSqlStmt;
+    }
+
     /**
      * returns true if acquire() succeeds. false otherwise.
      */
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sqlcipher.database;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of {@link SQLiteCompiledSql} objects attached to a {@link SQLiteDatabase}.
+ *
+ * The cache is split into stripes keyed by the hash of the sql string, each stripe guarded by
+ * its own lock, so that lookups of different statements do not contend on one monitor.
+ *
+ * When a stripe is full its least recently used entry is evicted. An evicted statement is
+ * finalized right away if no {@link SQLiteProgram} is using it; otherwise the program that
+ * holds it finalizes it when it is released (see {@link #releaseIfCached(SQLiteCompiledSql)}).
+ * Both decisions are made under the stripe lock so exactly one side finalizes the statement.
+ */
+/* package */ class SQLiteCompiledSqlCache {
+
+    private static final String TAG = "SQLiteCompiledSqlCache";
+
+    /* package */ static final int STRIPES = 4;
+
+    private final Stripe[] mStripes = new Stripe[STRIPES];
+    private volatile int mMaxSize;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    private static final class Stripe {
+        final LinkedHashMap<String, SQLiteCompiledSql> map =
+                new LinkedHashMap<String, SQLiteCompiledSql>(16, 0.75f, true);
+    }
+
+    /* package */ SQLiteCompiledSqlCache(int maxSize) {
+        mMaxSize = maxSize;
+        for (int i = 0; i < STRIPES; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripeFor(String sql) {
+        int h = sql.hashCode();
+        h ^= (h >>> 16);
+        return mStripes[h & (STRIPES - 1)];
+    }
+
+    private int stripeCapacity() {
+        int max = mMaxSize;
+        return max <= 0 ? 0 : Math.max(1, (max + STRIPES - 1) / STRIPES);
+    }
+
+    /* package */ int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /* package */ void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * returns the cached compiled statement for the given sql, or null.
+     */
+    /* package */ SQLiteCompiledSql get(String sql) {
+        Stripe stripe = stripeFor(sql);
+        SQLiteCompiledSql compiledSql;
+        synchronized (stripe) {
+            compiledSql = stripe.map.get(sql);
+            if (compiledSql != null) {
+                compiledSql.mHits++;
+            }
+        }
+        if (compiledSql != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+        }
+        return compiledSql;
+    }
+
+    /**
+     * adds the given compiled statement to the cache, evicting the least recently used entry
+     * of its stripe if the stripe is full. an existing mapping is NOT replaced.
+     */
+    /* package */ void put(String sql, SQLiteCompiledSql compiledSql) {
+        int capacity = stripeCapacity();
+        if (capacity == 0) {
+            return;
+        }
+        Stripe stripe = stripeFor(sql);
+        List<SQLiteCompiledSql> evicted = null;
+        synchronized (stripe) {
+            if (stripe.map.containsKey(sql)) {
+                return;
+            }
+            stripe.map.put(sql, compiledSql);
+            Iterator<SQLiteCompiledSql> iterator = stripe.map.values().iterator();
+            while (stripe.map.size() > capacity && iterator.hasNext()) {
+                SQLiteCompiledSql eldest = iterator.next();
+                iterator.remove();
+                mEvictions.incrementAndGet();
+                if (eldest.acquire()) {
+                    if (evicted == null) {
+                        evicted = new ArrayList<SQLiteCompiledSql>(1);
+                    }
+                    evicted.add(eldest);
+                }
+                // else: in use, its SQLiteProgram finalizes it on release
+            }
+        }
+        finalizeAll(evicted);
+    }
+
+    /**
+     * called by a {@link SQLiteProgram} that is done with the given statement.
+     * @return true if the statement is still cached and was handed back to the cache,
+     * false if the caller is responsible for finalizing it.
+     */
+    /* package */ boolean releaseIfCached(SQLiteCompiledSql compiledSql) {
+        String sql = compiledSql.getSqlString();
+        if (sql == null) {
+            return false;
+        }
+        Stripe stripe = stripeFor(sql);
+        synchronized (stripe) {
+            if (stripe.map.get(sql) == compiledSql) {
+                compiledSql.release();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /* package */ boolean contains(String sql) {
+        Stripe stripe = stripeFor(sql);
+        synchronized (stripe) {
+            return stripe.map.containsKey(sql);
+        }
+    }
+
+    /**
+     * removes the given sql, finalizing its statement if it is not in use.
+     */
+    /* package */ void remove(String sql) {
+        Stripe stripe = stripeFor(sql);
+        SQLiteCompiledSql removed;
+        synchronized (stripe) {
+            removed = stripe.map.remove(sql);
+            if (removed != null && !removed.acquire()) {
+                removed = null;
+            }
+        }
+        if (removed != null) {
+            removed.releaseSqlStatement();
+        }
+    }
+
+    /**
+     * removes all entries, finalizing the ones that are not in use.
+     */
+    /* package */ void evictAll() {
+        List<SQLiteCompiledSql> evicted = new ArrayList<SQLiteCompiledSql>();
+        for (int i = 0; i < STRIPES; i++) {
+            Stripe stripe = mStripes[i];
+            synchronized (stripe) {
+                for (SQLiteCompiledSql compiledSql : stripe.map.values()) {
+                    if (compiledSql.acquire()) {
+                        evicted.add(compiledSql);
+                    }
+                }
+                stripe.map.clear();
+            }
+        }
+        finalizeAll(evicted);
+    }
+
+    /**
+     * removes and finalizes all entries, used when the database is closed.
+     */
+    /* package */ void deallocAll() {
+        List<SQLiteCompiledSql> all = new ArrayList<SQLiteCompiledSql>();
+        for (int i = 0; i < STRIPES; i++) {
+            Stripe stripe = mStripes[i];
+            synchronized (stripe) {
+                all.addAll(stripe.map.values());
+                stripe.map.clear();
+            }
+        }
+        finalizeAll(all);
+    }
+
+    /* package */ int size() {
+        int size = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            Stripe stripe = mStripes[i];
+            synchronized (stripe) {
+                size += stripe.map.size();
+            }
+        }
+        return size;
+    }
+
+    /* package */ SQLiteDebug.CompiledSqlCacheStats getStats(String dbName) {
+        SQLiteDebug.CompiledSqlCacheStats stats = new SQLiteDebug.CompiledSqlCacheStats();
+        stats.dbName = dbName;
+        stats.maxSize = mMaxSize;
+        stats.hits = mHits.get();
+        stats.misses = mMisses.get();
+        stats.evictions = mEvictions.get();
+        for (int i = 0; i < STRIPES; i++) {
+            Stripe stripe = mStripes[i];
+            synchronized (stripe) {
+                stats.size += stripe.map.size();
+                for (Map.Entry<String, SQLiteCompiledSql> entry : stripe.map.entrySet()) {
+                    int hits = entry.getValue().mHits;
+                    if (stats.hottestSql == null || hits > stats.hottestHits) {
+                        stats.hottestSql = entry.getKey();
+                        stats.hottestHits = hits;
+                    }
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static void finalizeAll(List<SQLiteCompiledSql> list) {
+        if (list == null) {
+            return;
+        }
+        for (int i = 0; i < list.size(); i++) {
+            SQLiteCompiledSql compiledSql = list.get(i);
+            if (SQLiteDebug.DEBUG_SQL_CACHE) {
+                Log.v(TAG, "|evicted_from_cache|" + compiledSql.getSqlString());
+            }
+            compiledSql.releaseSqlStatement();
+        }
+    }
+}
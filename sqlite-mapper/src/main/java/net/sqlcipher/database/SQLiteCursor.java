@@ -27,6 +27,7 @@ import android.util.Log;
 
 import net.sqlcipher.AbstractWindowedCursor;
 import net.sqlcipher.CursorWindow;
+import net.sqlcipher.CursorWindowPool;
 import net.sqlcipher.SQLException;
 
 import java.util.HashMap;
@@ -78,6 +79,35 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     private int mCursorState = 0;
     private ReentrantLock mLock = null;
     private boolean mPendingData = false;
+
+    /** take the window from {@link CursorWindowPool} and give it back on close */
+    private boolean mUsePooledWindow = false;
+    private boolean mWindowFromPool = false;
+
+    /**
+     * rows that fit in one window, from the hint or from the last window that was filled up.
+     * used to place the window when moving backwards, 0 if unknown.
+     */
+    private int mRowsPerWindow = 0;
+
+    /**
+     * Takes the window from {@link CursorWindowPool} instead of allocating a new native window,
+     * and returns it to the pool when the cursor is closed. The caller must not keep the window
+     * returned by {@link #getWindow()} after closing the cursor.
+     * Must be called before the cursor is first read.
+     */
+    public void setUsePooledWindow(boolean usePooledWindow) {
+        mUsePooledWindow = usePooledWindow;
+    }
+
+    /**
+     * Hint of how many rows fit in one window (the native window size is fixed, so this depends
+     * on the row width). Used when moving backwards to fill the window with the rows before the
+     * requested position instead of after it. Replaced by the observed value once a window fills up.
+     */
+    public void setWindowRowsHint(int rows) {
+        mRowsPerWindow = rows;
+    }
     
     /**
      *  support for a cursor variant that doesn't always read all results
@@ -264,12 +294,28 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         // Make sure the row at newPosition is present in the window
         if (mWindow == null || newPosition < mWindow.getStartPosition() ||
                 newPosition >= (mWindow.getStartPosition() + mWindow.getNumRows())) {
-            fillWindow(newPosition);
+            int startPos = newPosition;
+            if (mWindow != null && newPosition < mWindow.getStartPosition() && mRowsPerWindow > 0) {
+                // moving backwards: end the new window at newPosition so the next moves hit it
+                startPos = Math.max(0, newPosition - mRowsPerWindow + 1);
+            }
+            fillWindow(startPos);
+            if (newPosition < mWindow.getStartPosition() ||
+                    newPosition >= mWindow.getStartPosition() + mWindow.getNumRows()) {
+                // rows were wider than estimated
+                fillWindow(newPosition);
+            }
         }
 
         return true;
     }
 
+    /**
+     * AbstractCursor.moveToPosition calls this on every move. The native
+     * fill always steps through the whole result to count it, so the count
+     * comes with the first window and later calls are free. A lazy count
+     * would need a native fill that stops when the window is full.
+     */
     @Override
     public int getCount() {
         if (mCount == NO_COUNT) {
@@ -281,7 +327,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     private void fillWindow (int startPos) {
         if (mWindow == null) {
             // If there isn't a window set already it will only be accessed locally
-            mWindow = new CursorWindow(true /* the window is local only */);
+            mWindow = newWindow();
         } else {
             mCursorState++;
                 queryThreadLock();
@@ -298,7 +344,28 @@ public class SQLiteCursor extends AbstractWindowedCursor {
             mCount = startPos + mInitialRead;
             Thread t = new Thread(new QueryThread(mCursorState), "query thread");
             t.start();
-        } 
+        } else {
+            int numRows = mWindow.getNumRows();
+            if (numRows > 0 && startPos + numRows < mCount) {
+                // the window is full, remember how many rows of this query fit
+                mRowsPerWindow = numRows;
+            }
+        }
+    }
+
+    private CursorWindow newWindow() {
+        // windows filled by the load thread are never pooled
+        mWindowFromPool = mUsePooledWindow && mLock == null;
+        return mWindowFromPool ? CursorWindowPool.obtain() : new CursorWindow(true);
+    }
+
+    private void releaseWindow(CursorWindow window) {
+        if (mWindowFromPool) {
+            mWindowFromPool = false;
+            CursorWindowPool.recycle(window);
+        } else {
+            window.close();
+        }
     }
 
     @Override
@@ -495,7 +562,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         if (Config.LOGV) Log.v(TAG, "<<< Releasing cursor " + this);
         mCursorState = 0;
         if (mWindow != null) {
-            mWindow.close();
+            releaseWindow(mWindow);
             mWindow = null;
         }
         if (Config.LOGV) Log.v("DatabaseWindow", "closing window in release()");
@@ -568,7 +635,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
             mCursorState++;
             queryThreadLock();
             try {
-                mWindow.close();
+                releaseWindow(mWindow);
             } finally {
                 queryThreadUnlock();
             }
@@ -627,7 +694,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         
         if (mWindow == null) {
             // If there isn't a window set already it will only be accessed locally
-            mWindow = new CursorWindow(true /* the window is local only */);
+            mWindow = newWindow();
         } else {
             mCursorState++;
                 queryThreadLock();
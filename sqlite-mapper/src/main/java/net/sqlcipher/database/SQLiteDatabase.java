@@ -41,7 +41,6 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.locks.ReentrantLock;
@@ -266,6 +265,11 @@ public class SQLiteDatabase extends SQLiteClosable {
      */
     private SQLiteTransactionListener mTransactionListener;
 
+    /**
+     * Notified when any outermost transaction ends, see {@link #setTransactionEndListener}.
+     */
+    private volatile TransactionEndListener mTransactionEndListener;
+
     /** Synchronize on this when accessing the database */
     private final ReentrantLock mLock = new ReentrantLock(true);
 
@@ -288,20 +292,12 @@ public class SQLiteDatabase extends SQLiteClosable {
 
     private long mLastLockMessageTime = 0L;
 
-    // Things related to query logging/sampling for debugging
-    // slow/frequent queries during development.  Always log queries
-    // which take (by default) 500ms+; shorter queries are sampled
-    // accordingly.  Commit statements, which are typically slow, are
-    // logged together with the most recently executed SQL statement,
-    // for disambiguation.  The 500ms value is configurable via a
-    // SystemProperty, but developers actively debugging database I/O
-    // should probably use the regular log tunable,
-    // LOG_SLOW_QUERIES_PROPERTY, defined below.
-    private static int sQueryLogTimeInMillis = 0;  // lazily initialized
-    private static final int QUERY_LOG_SQL_LENGTH = 64;
+    // Statement timings. Callers take System.nanoTime() before acquiring the
+    // lock and funnel through logTimeStat, which reports to mMetricsListener
+    // when one is set. Commit statements are reported as COMMIT_SQL.
     private static final String COMMIT_SQL = "COMMIT;";
-    private final Random mRandom = new Random();
     private String mLastSqlStatement = null;
+    private volatile MetricsListener mMetricsListener;
 
     // String prefix for slow database query EventLog records that show
     // lock acquistions of the database.
@@ -340,21 +336,16 @@ public class SQLiteDatabase extends SQLiteClosable {
      * invoked.
      *
      * this cache has an upper limit of mMaxSqlCacheSize (settable by calling the method
-     * (@link setMaxCacheSize(int)}). its default is 0 - i.e., no caching by default because
-     * most of the apps don't use "?" syntax in their sql, caching is not useful for them.
+     * (@link setMaxCacheSize(int)}). when it is full the least recently used statement is
+     * evicted, so statements that become hot late in a long session still get cached.
      */
-    /* package */ Map<String, SQLiteCompiledSql> mCompiledQueries = new HashMap<String, SQLiteCompiledSql>();
+    /* package */ final SQLiteCompiledSqlCache mCompiledQueries =
+            new SQLiteCompiledSqlCache(MAX_SQL_CACHE_SIZE);
     /**
      * @hide
      */
     public static final int MAX_SQL_CACHE_SIZE = 250;
     private int mMaxSqlCacheSize = MAX_SQL_CACHE_SIZE; // max cache size per Database instance
-    private int mCacheFullWarnings;
-    private static final int MAX_WARNINGS_ON_CACHESIZE_CONDITION = 1;
-
-    /** maintain stats about number of cache hits and misses */
-    private int mNumCacheHits;
-    private int mNumCacheMisses;
 
     /** the following 2 members maintain the time when a database is opened and closed */
     private String mTimeOpened = null;
@@ -453,7 +444,7 @@ public class SQLiteDatabase extends SQLiteClosable {
      */
     /* package */ void lock() {
         if (!mLockingEnabled) return;
-        mLock.lock();
+        lockAndMeasure();
         if (SQLiteDebug.DEBUG_LOCK_TIME_TRACKING) {
             if (mLock.getHoldCount() == 1) {
                 // Use elapsed real-time since the CPU may sleep when waiting for IO
@@ -472,7 +463,7 @@ public class SQLiteDatabase extends SQLiteClosable {
      * @see #unlockForced()
      */
     private void lockForced() {
-        mLock.lock();
+        lockAndMeasure();
         if (SQLiteDebug.DEBUG_LOCK_TIME_TRACKING) {
             if (mLock.getHoldCount() == 1) {
                 // Use elapsed real-time since the CPU may sleep when waiting for IO
@@ -482,6 +473,17 @@ public class SQLiteDatabase extends SQLiteClosable {
         }
     }
 
+    private void lockAndMeasure() {
+        MetricsListener listener = mMetricsListener;
+        if (listener == null) {
+            mLock.lock();
+            return;
+        }
+        long start = System.nanoTime();
+        mLock.lock();
+        listener.onLockWait(System.nanoTime() - start);
+    }
+
     /**
      * Releases the database lock. This is a no-op if mLockingEnabled is false.
      *
@@ -641,6 +643,8 @@ public class SQLiteDatabase extends SQLiteClosable {
         if (!mLock.isHeldByCurrentThread()) {
             throw new IllegalStateException("no transaction pending");
         }
+        boolean ended = false;
+        boolean committed = false;
         try {
             if (mInnerTransactionIsSuccessful) {
                 mInnerTransactionIsSuccessful = false;
@@ -650,6 +654,7 @@ public class SQLiteDatabase extends SQLiteClosable {
             if (mLock.getHoldCount() != 1) {
                 return;
             }
+            ended = true;
             RuntimeException savedException = null;
             if (mTransactionListener != null) {
                 try {
@@ -665,6 +670,7 @@ public class SQLiteDatabase extends SQLiteClosable {
             }
             if (mTransactionIsSuccessful) {
                 execSQL(COMMIT_SQL);
+                committed = true;
             } else {
                 try {
                     execSQL("ROLLBACK;");
@@ -680,6 +686,11 @@ public class SQLiteDatabase extends SQLiteClosable {
             }
         } finally {
             mTransactionListener = null;
+            TransactionEndListener endListener = mTransactionEndListener;
+            if (ended && endListener != null) {
+                // Still holding the lock, so no other transaction has started yet.
+                endListener.onTransactionEnd(committed);
+            }
             unlockForced();
             if (Config.LOGV) {
                 Log.v(TAG, "unlocked " + Thread.currentThread()
@@ -1641,6 +1652,29 @@ public class SQLiteDatabase extends SQLiteClosable {
         return new CrossProcessCursorWrapper(cursor);
     }
 
+    /**
+     * Runs the provided SQL and returns a cursor over the result set. Unlike
+     * {@link #rawQuery(String, String[])} the args keep their types: longs
+     * and doubles are bound with bindLong/bindDouble and compare as numbers.
+     *
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param binder binds the values of the ?s in the query, may be null.
+     *     It is called once; the bound values are copied for requery.
+     *
+     * @return A {@link Cursor} object, which is positioned before the first entry.
+     *
+     * @throws SQLiteException if there is an issue executing the sql or the SQL string is invalid
+     * @throws IllegalStateException if the database is not open
+     */
+    public Cursor rawQueryWithBinder(String sql, SQLiteArgsBinder binder) {
+        if (!isOpen()) {
+            throw new IllegalStateException("database not open");
+        }
+        SQLiteDirectCursorDriver driver = new SQLiteDirectCursorDriver(this, sql, null);
+        Cursor cursor = driver.query(mFactory, binder);
+        return new CrossProcessCursorWrapper(cursor);
+    }
+
     /**
      * Runs the provided SQL and returns a cursor over the result set.
      * The cursor will read an initial set of rows and the return to the caller.
@@ -2009,7 +2043,7 @@ public class SQLiteDatabase extends SQLiteClosable {
      * @throws IllegalStateException if the database is not open
      */
     public void execSQL(String sql) throws SQLException {
-        long timeStart = SystemClock.uptimeMillis();
+        long timeStart = System.nanoTime();
         lock();
         if (!isOpen()) {
             throw new IllegalStateException("database not open");
@@ -2035,7 +2069,7 @@ public class SQLiteDatabase extends SQLiteClosable {
     }
 
     public void rawExecSQL(String sql){
-        long timeStart = SystemClock.uptimeMillis();
+        long timeStart = System.nanoTime();
         lock();
         if (!isOpen()) {
             throw new IllegalStateException("database not open");
@@ -2075,7 +2109,7 @@ public class SQLiteDatabase extends SQLiteClosable {
         if (bindArgs == null) {
             throw new IllegalArgumentException("Empty bindArgs");
         }
-        long timeStart = SystemClock.uptimeMillis();
+        long timeStart = System.nanoTime();
         lock();
         if (!isOpen()) {
             throw new IllegalStateException("database not open");
@@ -2224,68 +2258,85 @@ public class SQLiteDatabase extends SQLiteClosable {
     }
 
 
-    /* package */ void logTimeStat(String sql, long beginMillis) {
-        logTimeStat(sql, beginMillis, null, -1);
+    /* package */ void logTimeStat(String sql, long beginNanos) {
+        logTimeStat(sql, beginNanos, null, -1);
     }
 
-    /* package */ void logTimeStat(String sql, long beginMillis, String prefix) {
-        logTimeStat(sql, beginMillis, prefix, -1);
+    /* package */ void logTimeStat(String sql, long beginNanos, String prefix) {
+        logTimeStat(sql, beginNanos, prefix, -1);
     }
 
-    /* package */ void logTimeStat(String sql, long beginMillis, long changedCount) {
-        logTimeStat(sql, beginMillis, null, changedCount);
+    /* package */ void logTimeStat(String sql, long beginNanos, long changedCount) {
+        logTimeStat(sql, beginNanos, null, changedCount);
     }
 
-    /* package */ void logTimeStat(String sql, long beginMillis, String prefix, long changedCount) {
+    /* package */ void logTimeStat(String sql, long beginNanos, String prefix, long changedCount) {
         // Keep track of the last statement executed here, as this is
         // the common funnel through which all methods of hitting
         // libsqlite eventually flow.
         mLastSqlStatement = sql;
 
-        // Sample fast queries in proportion to the time taken.
-        // Quantize the % first, so the logged sampling probability
-        // exactly equals the actual sampling rate for this query.
-
-        int samplePercent;
-        long durationMillis = SystemClock.uptimeMillis() - beginMillis;
-        if (durationMillis == 0 && prefix == GET_LOCK_LOG_PREFIX) {
-            // The common case is locks being uncontended.  Don't log those,
-            // even at 1%, which is our default below.
+        // Lock waits are reported from lock() itself.
+        MetricsListener listener = mMetricsListener;
+        if (listener == null || prefix == GET_LOCK_LOG_PREFIX) {
             return;
         }
-        if (sQueryLogTimeInMillis == 0) {
-            sQueryLogTimeInMillis = 500;//SystemProperties.getInt("db.db_operation.threshold_ms", 500);
-        }
-        if (durationMillis >= sQueryLogTimeInMillis) {
-            samplePercent = 100;
-        } else {;
-            samplePercent = (int) (100 * durationMillis / sQueryLogTimeInMillis) + 1;
-            if (mRandom.nextInt(100) >= samplePercent) return;
-        }
+        long durationNanos = System.nanoTime() - beginNanos;
+        listener.onStatement(prefix == COMMIT_SQL ? COMMIT_SQL : sql, durationNanos, changedCount);
+    }
 
-        // Note: the prefix will be "COMMIT;" or "GETLOCK:" when non-null.  We wait to do
-        // it here so we avoid allocating in the common case.
-        if (prefix != null) {
-            sql = prefix + sql;
-        }
+    /**
+     * Receives statement timings from a database, see {@link #setMetricsListener}.
+     * Callbacks run on the executing thread, mostly with the database lock held,
+     * so implementations must be cheap and must not touch the database.
+     */
+    public interface MetricsListener {
+
+        /**
+         * @param sql the statement, or "COMMIT;"
+         * @param durationNanos time since the caller started, including the lock wait
+         * @param rows rows changed, rows read into a cursor window, or -1 if unknown
+         */
+        void onStatement(String sql, long durationNanos, long rows);
+
+        /**
+         * @param waitNanos time spent acquiring the database lock
+         */
+        void onLockWait(long waitNanos);
+    }
+
+    /**
+     * Sets the listener for statement timings and lock waits, null to disable.
+     * When disabled the only cost per statement is one System.nanoTime() call.
+     */
+    public void setMetricsListener(MetricsListener listener) {
+        mMetricsListener = listener;
+    }
 
-        if (sql.length() > QUERY_LOG_SQL_LENGTH) sql = sql.substring(0, QUERY_LOG_SQL_LENGTH);
+    public MetricsListener getMetricsListener() {
+        return mMetricsListener;
+    }
 
-        // ActivityThread.currentPackageName() only returns non-null if the
-        // current thread is an application main thread.  This parameter tells
-        // us whether an event loop is blocked, and if so, which app it is.
-        //
-        // Sadly, there's no fast way to determine app name if this is *not* a
-        // main thread, or when we are invoked via Binder (e.g. ContentProvider).
-        // Hopefully the full path to the database will be informative enough.
+    /**
+     * Receives the outcome of every outermost transaction, including those
+     * begun without a {@link SQLiteTransactionListener}. Unlike
+     * {@link SQLiteTransactionListener#onCommit} it runs after COMMIT has
+     * executed. Callbacks run with the database lock still held.
+     */
+    public interface TransactionEndListener {
 
-        //TODO get the current package name
-        String blockingPackage = "unknown";//ActivityThread.currentPackageName();
-        if (blockingPackage == null) blockingPackage = "";
+        /**
+         * @param committed true if COMMIT succeeded, false if the transaction
+         *     was rolled back or COMMIT failed
+         */
+        void onTransactionEnd(boolean committed);
+    }
 
-//        if (printSQLTS) {
-//            Timber.i("SQL Log, ts=%d ms, total=%s \n %s", EVENT_DB_OPERATION, durationMillis, changedCount, sql);
-//        }
+    /**
+     * Sets the listener for transaction outcomes, null to disable.
+     */
+    public void setTransactionEndListener(TransactionEndListener listener) {
+        mTransactionEndListener = listener;
     }
 
     /**
@@ -2348,49 +2399,18 @@ public class SQLiteDatabase extends SQLiteClosable {
             return;
         }
 
-        SQLiteCompiledSql compiledSql = null;
-        synchronized(mCompiledQueries) {
-            // don't insert the new mapping if a mapping already exists
-            compiledSql = mCompiledQueries.get(sql);
-            if (compiledSql != null) {
-                return;
-            }
-            // add this <sql, compiledStatement> to the cache
-            if (mCompiledQueries.size() == mMaxSqlCacheSize) {
-                /*
-                 * cache size of {@link #mMaxSqlCacheSize} is not enough for this app.
-                 * log a warning MAX_WARNINGS_ON_CACHESIZE_CONDITION times
-                 * chances are it is NOT using ? for bindargs - so caching is useless.
-                 * TODO: either let the callers set max cchesize for their app, or intelligently
-                 * figure out what should be cached for a given app.
-                 */
-                if (++mCacheFullWarnings == MAX_WARNINGS_ON_CACHESIZE_CONDITION) {
-                    Log.w(TAG, "Reached MAX size for compiled-sql statement cache for database " +
-                          getPath() + "; i.e., NO space for this sql statement in cache: " +
-                          sql + ". Please change your sql statements to use '?' for " +
-                          "bindargs, instead of using actual values");
-                }
-                // don't add this entry to cache
-            } else {
-                // cache is NOT full. add this to cache.
-                mCompiledQueries.put(sql, compiledStatement);
-                if (SQLiteDebug.DEBUG_SQL_CACHE) {
-                    Log.v(TAG, "|adding_sql_to_cache|" + getPath() + "|" +
-                          mCompiledQueries.size() + "|" + sql);
-                }
-            }
+        // don't insert the new mapping if a mapping already exists.
+        // if the cache is full, the least recently used statement is evicted.
+        mCompiledQueries.put(sql, compiledStatement);
+        if (SQLiteDebug.DEBUG_SQL_CACHE) {
+            Log.v(TAG, "|adding_sql_to_cache|" + getPath() + "|" +
+                  mCompiledQueries.size() + "|" + sql);
         }
-        return;
     }
 
 
     private void deallocCachedSqlStatements() {
-        synchronized (mCompiledQueries) {
-            for (SQLiteCompiledSql compiledSql : mCompiledQueries.values()) {
-                compiledSql.releaseSqlStatement();
-            }
-            mCompiledQueries.clear();
-        }
+        mCompiledQueries.deallocAll();
     }
 
     /**
@@ -2398,29 +2418,19 @@ public class SQLiteDatabase extends SQLiteClosable {
      * returns null, if not found in the cache.
      */
     /* package */ SQLiteCompiledSql getCompiledStatementForSql(String sql) {
-        SQLiteCompiledSql compiledStatement = null;
-        boolean cacheHit;
-        synchronized(mCompiledQueries) {
-            if (mMaxSqlCacheSize == 0) {
-                // for this database, there is no cache of compiled sql.
-                if (SQLiteDebug.DEBUG_SQL_CACHE) {
-                    Log.v(TAG, "|cache NOT found|" + getPath());
-                }
-                return null;
+        if (mMaxSqlCacheSize == 0) {
+            // for this database, there is no cache of compiled sql.
+            if (SQLiteDebug.DEBUG_SQL_CACHE) {
+                Log.v(TAG, "|cache NOT found|" + getPath());
             }
-            cacheHit = (compiledStatement = mCompiledQueries.get(sql)) != null;
-        }
-        if (cacheHit) {
-            mNumCacheHits++;
-        } else {
-            mNumCacheMisses++;
+            return null;
         }
+        SQLiteCompiledSql compiledStatement = mCompiledQueries.get(sql);
 
         if (SQLiteDebug.DEBUG_SQL_CACHE) {
             Log.v(TAG, "|cache_stats|" +
                   getPath() + "|" + mCompiledQueries.size() +
-                  "|" + mNumCacheHits + "|" + mNumCacheMisses +
-                  "|" + cacheHit + "|" + mTimeOpened + "|" + mTimeClosed + "|" + sql);
+                  "|" + (compiledStatement != null) + "|" + mTimeOpened + "|" + mTimeClosed + "|" + sql);
         }
         return compiledStatement;
     }
@@ -2430,9 +2440,7 @@ public class SQLiteDatabase extends SQLiteClosable {
      * @hide
      */
     public boolean isInCompiledSqlCache(String sql) {
-        synchronized(mCompiledQueries) {
-            return mCompiledQueries.containsKey(sql);
-        }
+        return mCompiledQueries.contains(sql);
     }
 
     /**
@@ -2440,9 +2448,7 @@ public class SQLiteDatabase extends SQLiteClosable {
      * @hide
      */
     public void purgeFromCompiledSqlCache(String sql) {
-        synchronized(mCompiledQueries) {
-            mCompiledQueries.remove(sql);
-        }
+        mCompiledQueries.remove(sql);
     }
 
     /**
@@ -2450,9 +2456,14 @@ public class SQLiteDatabase extends SQLiteClosable {
      * @hide
      */
     public void resetCompiledSqlCache() {
-        synchronized(mCompiledQueries) {
-            mCompiledQueries.clear();
-        }
+        mCompiledQueries.evictAll();
+    }
+
+    /**
+     * hit/miss/eviction counters of the compiled sql cache.
+     */
+    public SQLiteDebug.CompiledSqlCacheStats getCompiledSqlCacheStats() {
+        return mCompiledQueries.getStats(getPath());
     }
 
     /**
@@ -2486,6 +2497,7 @@ public class SQLiteDatabase extends SQLiteClosable {
                                             "set with previous setMaxSqlCacheSize() call.");
         }
         mMaxSqlCacheSize = cacheSize;
+        mCompiledQueries.setMaxSize(cacheSize);
     }
 
     /**
@@ -2541,6 +2553,21 @@ public class SQLiteDatabase extends SQLiteClosable {
         return dbStatsList;
     }
 
+    /**
+     * Collects the compiled-sql cache hit/miss counters of every open database
+     * in the current process, see {@link SQLiteDebug#getCompiledSqlCacheStats}.
+     */
+    /* package */ static ArrayList<SQLiteDebug.CompiledSqlCacheStats> getCompiledSqlCacheStatsList() {
+        ArrayList<SQLiteDebug.CompiledSqlCacheStats> list = new ArrayList<SQLiteDebug.CompiledSqlCacheStats>();
+        for (SQLiteDatabase db : getActiveDatabases()) {
+            if (db == null || !db.isOpen()) {
+                continue;
+            }
+            list.add(db.getCompiledSqlCacheStats());
+        }
+        return list;
+    }
+
     private static ArrayList<SQLiteDatabase> getActiveDatabases() {
         ArrayList<SQLiteDatabase> databases = new ArrayList<SQLiteDatabase>();
         synchronized (sActiveDatabases) {
@@ -140,6 +140,47 @@ public final class SQLiteDebug {
         }
     }
 
+    /**
+     * contains statistics about the compiled-sql cache of a database
+     */
+    public static class CompiledSqlCacheStats {
+        /** path of the database */
+        public String dbName;
+
+        /** number of cached statements */
+        public int size;
+
+        /** max number of cached statements */
+        public int maxSize;
+
+        /** lookups served from the cache */
+        public long hits;
+
+        /** lookups that had to compile the statement */
+        public long misses;
+
+        /** statements evicted because the cache was full */
+        public long evictions;
+
+        /** the cached statement with the most hits, and its hit count */
+        public String hottestSql;
+        public int hottestHits;
+
+        @Override
+        public String toString() {
+            return "CompiledSqlCacheStats{" + dbName + ", size=" + size + "/" + maxSize +
+                    ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions +
+                    ", hottest=" + hottestHits + "|" + hottestSql + "}";
+        }
+    }
+
+    /**
+     * return compiled-sql cache stats of all open databases in the current process.
+     */
+    public static ArrayList<CompiledSqlCacheStats> getCompiledSqlCacheStats() {
+        return SQLiteDatabase.getCompiledSqlCacheStatsList();
+    }
+
     /**
      * return all pager and database stats for the current process.
      * @return {@link PagerStats}
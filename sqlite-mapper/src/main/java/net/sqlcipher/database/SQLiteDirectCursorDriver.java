@@ -65,6 +65,31 @@ public class SQLiteDirectCursorDriver implements SQLiteCursorDriver {
         }
     }
 
+    /**
+     * Same as {@link #query(CursorFactory, String[])}, but the args are bound
+     * with their own types by the binder.
+     */
+    public Cursor query(CursorFactory factory, SQLiteArgsBinder binder) {
+        // Compile the query, the binder's values are bound and copied here
+        SQLiteQuery query = new SQLiteQuery(mDatabase, mSql, 0, binder);
+
+        try {
+            // Create the cursor
+            if (factory == null) {
+                mCursor = new SQLiteCursor(mDatabase, this, mEditTable, query);
+            } else {
+                mCursor = factory.newCursor(mDatabase, this, mEditTable, query);
+            }
+
+            mQuery = query;
+            query = null;
+            return mCursor;
+        } finally {
+            // Make sure this object is cleaned up if something happens
+            if (query != null) query.close();
+        }
+    }
+
     public void cursorClosed() {
         mCursor = null;
     }
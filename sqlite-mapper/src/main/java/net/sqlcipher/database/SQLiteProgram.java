@@ -130,18 +130,14 @@ public abstract class SQLiteProgram extends SQLiteClosable {
         if (mCompiledSql == null) {
             return;
         }
-        synchronized(mDatabase.mCompiledQueries) {
-            if (!mDatabase.mCompiledQueries.containsValue(mCompiledSql)) {
-                // it is NOT in compiled-sql cache. i.e., responsibility of
-                // releasing this statement is on me.
-                mCompiledSql.releaseSqlStatement();
-                mCompiledSql = null;
-                nStatement = 0;
-            } else {
-                // it is in compiled-sql cache. reset its CompiledSql#mInUse flag
-                mCompiledSql.release();
-            }
-        } 
+        // if it is in compiled-sql cache, this resets its CompiledSql#mInUse flag
+        if (!mDatabase.mCompiledQueries.releaseIfCached(mCompiledSql)) {
+            // it is NOT in compiled-sql cache. i.e., responsibility of
+            // releasing this statement is on me.
+            mCompiledSql.releaseSqlStatement();
+            mCompiledSql = null;
+            nStatement = 0;
+        }
     }
 
     /**
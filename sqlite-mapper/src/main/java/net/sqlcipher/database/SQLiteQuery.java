@@ -17,9 +17,10 @@
 package net.sqlcipher.database;
 import net.sqlcipher.*;
 
-import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.Arrays;
+
 /**
  * A SQLite program that represents a query that reads the resulting rows into a CursorWindow.
  * This class is used by SQLiteCursor and isn't useful itself.
@@ -36,6 +37,13 @@ public class SQLiteQuery extends SQLiteProgram {
     /** Args to bind on requery */
     private String[] mBindArgs;
 
+    /**
+     * Typed args copied from the binder when the query was created, bound
+     * again on requery. Used instead of mBindArgs when set.
+     */
+    private Object[] mTypedArgs;
+    private int mTypedArgCount;
+
     private boolean mClosed = false;
 
     /**
@@ -52,6 +60,26 @@ public class SQLiteQuery extends SQLiteProgram {
         mBindArgs = bindArgs;
     }
 
+    /**
+     * Create a persistent query object whose args are bound by a binder
+     * rather than as Strings.
+     *
+     * @param db The database that this query object is associated with
+     * @param query The SQL string for this query.
+     * @param offsetIndex The 1-based index to the OFFSET parameter,
+     * @param binder binds the args once. The bound values are copied, so the
+     *     binder may be cleared and reused as soon as this returns.
+     */
+    /* package */ SQLiteQuery(SQLiteDatabase db, String query, int offsetIndex, SQLiteArgsBinder binder) {
+        super(db, query);
+
+        mOffsetIndex = offsetIndex;
+        mTypedArgs = new Object[4];
+        if (binder != null) {
+            binder.bindTo(this);
+        }
+    }
+
     /**
      * Reads rows into a buffer. This method acquires the database lock.
      *
@@ -60,7 +88,7 @@ public class SQLiteQuery extends SQLiteProgram {
      */
     /* package */ int fillWindow(CursorWindow window,
             int maxRead, int lastPos) {
-        long timeStart = SystemClock.uptimeMillis();
+        long timeStart = System.nanoTime();
         mDatabase.lock();
         mDatabase.logTimeStat(mSql, timeStart, SQLiteDatabase.GET_LOCK_LOG_PREFIX);
         try {
@@ -77,7 +105,7 @@ public class SQLiteQuery extends SQLiteProgram {
                 if (SQLiteDebug.DEBUG_SQL_STATEMENTS) {
                     Log.d(TAG, "fillWindow(): " + mSql);
                 }
-                mDatabase.logTimeStat(mSql, timeStart);
+                mDatabase.logTimeStat(mSql, timeStart, numRows);
                 return numRows;
             } catch (IllegalStateException e){
                 // simply ignore it
@@ -141,7 +169,22 @@ public class SQLiteQuery extends SQLiteProgram {
      * Called by SQLiteCursor when it is requeried.
      */
     /* package */ void requery() {
-        if (mBindArgs != null) {
+        if (mTypedArgs != null) {
+            for (int i = 0; i < mTypedArgCount; i++) {
+                Object value = mTypedArgs[i];
+                if (value == null) {
+                    super.bindNull(i + 1);
+                } else if (value instanceof Long) {
+                    super.bindLong(i + 1, (Long) value);
+                } else if (value instanceof Double) {
+                    super.bindDouble(i + 1, (Double) value);
+                } else if (value instanceof byte[]) {
+                    super.bindBlob(i + 1, (byte[]) value);
+                } else {
+                    super.bindString(i + 1, (String) value);
+                }
+            }
+        } else if (mBindArgs != null) {
             int len = mBindArgs.length;
             try {
                 for (int i = 0; i < len; i++) {
@@ -163,28 +206,60 @@ public class SQLiteQuery extends SQLiteProgram {
 
     @Override
     public void bindNull(int index) {
-        mBindArgs[index - 1] = null;
+        if (mBindArgs != null) mBindArgs[index - 1] = null;
+        setTypedArg(index, null);
         if (!mClosed) super.bindNull(index);
     }
 
     @Override
     public void bindLong(int index, long value) {
-        mBindArgs[index - 1] = Long.toString(value);
+        if (mBindArgs != null) mBindArgs[index - 1] = Long.toString(value);
+        setTypedArg(index, value);
         if (!mClosed) super.bindLong(index, value);
     }
 
     @Override
     public void bindDouble(int index, double value) {
-        mBindArgs[index - 1] = Double.toString(value);
+        if (mBindArgs != null) mBindArgs[index - 1] = Double.toString(value);
+        setTypedArg(index, value);
         if (!mClosed) super.bindDouble(index, value);
     }
 
     @Override
     public void bindString(int index, String value) {
-        mBindArgs[index - 1] = value;
+        if (mBindArgs != null) mBindArgs[index - 1] = value;
+        setTypedArg(index, value);
         if (!mClosed) super.bindString(index, value);
     }
 
+    @Override
+    public void bindBlob(int index, byte[] value) {
+        setTypedArg(index, value == null ? null : value.clone());
+        if (!mClosed) super.bindBlob(index, value);
+    }
+
+    @Override
+    public void clearBindings() {
+        if (mTypedArgs != null) {
+            Arrays.fill(mTypedArgs, 0, mTypedArgCount, null);
+            mTypedArgCount = 0;
+        }
+        if (!mClosed) super.clearBindings();
+    }
+
+    private void setTypedArg(int index, Object value) {
+        if (mTypedArgs == null) {
+            return;
+        }
+        if (index > mTypedArgs.length) {
+            mTypedArgs = Arrays.copyOf(mTypedArgs, Math.max(index, mTypedArgs.length * 2));
+        }
+        mTypedArgs[index - 1] = value;
+        if (index > mTypedArgCount) {
+            mTypedArgCount = index;
+        }
+    }
+
     private final native int native_fill_window(CursorWindow window, 
             int startPos, int offsetParam, int maxRead, int lastPos);
 
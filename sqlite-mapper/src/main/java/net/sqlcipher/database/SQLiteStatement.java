@@ -16,7 +16,6 @@
 
 package net.sqlcipher.database;
 
-import android.os.SystemClock;
 
 import java.util.Iterator;
 import java.util.List;
@@ -54,7 +53,7 @@ public class SQLiteStatement extends SQLiteProgram
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
+        long timeStart = System.nanoTime();
         mDatabase.lock();
 
         acquireReference();
@@ -80,14 +79,15 @@ public class SQLiteStatement extends SQLiteProgram
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
+        long timeStart = System.nanoTime();
         mDatabase.lock();
 
         acquireReference();
         try {
             native_execute();
-            long ret = (mDatabase.lastChangeCount() > 0) ? mDatabase.lastInsertRow() : -1;
-            mDatabase.logTimeStat(mSql, timeStart, ret);
+            int changes = mDatabase.lastChangeCount();
+            long ret = (changes > 0) ? mDatabase.lastInsertRow() : -1;
+            mDatabase.logTimeStat(mSql, timeStart, changes);
             return ret;
         } finally {
             releaseReference();
@@ -99,14 +99,15 @@ public class SQLiteStatement extends SQLiteProgram
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
+        long timeStart = System.nanoTime();
         mDatabase.lock();
 
         acquireReference();
         try {
             native_execute();
-            mDatabase.logTimeStat(mSql, timeStart, -1);
-            return mDatabase.lastChangeCount();
+            int changes = mDatabase.lastChangeCount();
+            mDatabase.logTimeStat(mSql, timeStart, changes);
+            return changes;
         } finally {
             releaseReference();
             mDatabase.unlock();
@@ -125,7 +126,7 @@ public class SQLiteStatement extends SQLiteProgram
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
+        long timeStart = System.nanoTime();
         mDatabase.lock();
 
         acquireReference();
@@ -151,7 +152,7 @@ public class SQLiteStatement extends SQLiteProgram
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
+        long timeStart = System.nanoTime();
         mDatabase.lock();
 
         acquireReference();
@@ -169,7 +170,7 @@ public class SQLiteStatement extends SQLiteProgram
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
+        long timeStart = System.nanoTime();
         mDatabase.lock();
 
         acquireReference();
@@ -193,7 +194,7 @@ public class SQLiteStatement extends SQLiteProgram
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
+        long timeStart = System.nanoTime();
         mDatabase.lock();
 
         acquireReference();
@@ -218,7 +219,7 @@ public class SQLiteStatement extends SQLiteProgram
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
+        long timeStart = System.nanoTime();
         mDatabase.lock();
 
         acquireReference();
@@ -243,7 +244,7 @@ public class SQLiteStatement extends SQLiteProgram
         if (!mDatabase.isOpen()) {
             throw new IllegalStateException("database " + mDatabase.getPath() + " already closed");
         }
-        long timeStart = SystemClock.uptimeMillis();
+        long timeStart = System.nanoTime();
         mDatabase.lock();
 
         acquireReference();